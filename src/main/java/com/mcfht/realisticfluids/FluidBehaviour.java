@@ -0,0 +1,138 @@
+package com.mcfht.realisticfluids;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.material.Material;
+import net.minecraft.init.Blocks;
+
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
+
+/**
+ * What flowing fluid does to each block type, precomputed per block ID.
+ *
+ * <p>
+ * The flow code used to ask every neighbour the same questions (is it a fence,
+ * is it a door or a sign, does the material block movement, is it a mod
+ * fluid...). Now each answer is a bit in one array read. The table is built
+ * on first use, and rebuilt when a server starts since block IDs can be
+ * remapped per world.
+ *
+ * @author FHT
+ */
+public class FluidBehaviour
+{
+    public static final int MAX_ID      = 4096;
+
+    // Flags
+    /** Fluid flows right into it (air) */
+    public static final int PASSABLE    = 0x01;
+    /** Flowing water washes it away (torches, plants...) */
+    public static final int BREAK_WATER = 0x02;
+    /** Flowing lava destroys it */
+    public static final int BREAK_LAVA  = 0x04;
+    /** A mod water that absorbs small amounts of water falling in */
+    public static final int SINK_WATER  = 0x08;
+    /** A mod lava that absorbs small amounts of lava falling in */
+    public static final int SINK_LAVA   = 0x10;
+    /** Fluid flows through it to the other side (fences, bars) */
+    public static final int CONDUIT     = 0x20;
+    /** Nothing can happen to it */
+    public static final int SOLID       = 0x40;
+
+    private static byte[]   flags       = null;
+    /** Cell class of each block, see FluidData.classify */
+    private static byte[]   classes     = null;
+
+    /** (Re)builds the table from the block registry */
+    public static synchronized void rebuild()
+    {
+        final byte[] f = new byte[MAX_ID];
+        final byte[] c = new byte[MAX_ID];
+        for (int id = 0; id < MAX_ID; id++)
+        {
+            final Block b = Block.getBlockById(id);
+            f[id] = (byte) compute(b, id);
+            c[id] = (byte) computeClass(b);
+        }
+        classes = c;
+        flags = f;
+    }
+
+    static int compute(final Block b, final int id)
+    {
+        final Material m = b.getMaterial();
+        if (m == Material.air)
+            return PASSABLE;
+        int out = 0;
+        if (m.isLiquid() && !(b instanceof BlockFiniteFluid) && id > 12)
+        {
+            if (m == Material.water)
+                out |= SINK_WATER;
+            else if (m == Material.lava)
+                out |= SINK_LAVA;
+        }
+        if (b == Blocks.fence || b == Blocks.nether_brick_fence || b == Blocks.iron_bars)
+            out |= CONDUIT;
+
+        // Same as BlockFiniteFluid.func_149807_p, these can never be broken by flow
+        final boolean unbreakable = b == Blocks.wooden_door || b == Blocks.iron_door || b == Blocks.standing_sign
+                || b == Blocks.ladder || b == Blocks.reeds || m == Material.portal || m.blocksMovement();
+        // And func_149809_q, nothing breaks lava or its own material
+        if (!unbreakable && m != Material.lava)
+        {
+            out |= BREAK_LAVA;
+            if (m != Material.water)
+                out |= BREAK_WATER;
+        }
+        if (unbreakable && (out & CONDUIT) == 0 && !m.isLiquid())
+            out |= SOLID;
+        return out;
+    }
+
+    static int computeClass(final Block b)
+    {
+        final Material m = b.getMaterial();
+        if (b == Blocks.air)
+            return FluidData.CLASS_AIR;
+        if (b instanceof BlockFiniteFluid)
+            return m == Material.lava ? FluidData.CLASS_LAVA : FluidData.CLASS_WATER;
+        if (m.isLiquid())
+            return FluidData.CLASS_MOD_FLUID;
+        if (b == Blocks.fence || b == Blocks.nether_brick_fence || b == Blocks.iron_bars)
+            return FluidData.CLASS_PASSABLE;
+        if (b == Blocks.wooden_door || b == Blocks.iron_door || b == Blocks.standing_sign || b == Blocks.ladder
+                || b == Blocks.reeds || m == Material.portal || m.blocksMovement())
+            return FluidData.CLASS_SOLID;
+        return FluidData.CLASS_BREAKABLE;
+    }
+
+    public static int flagsOf(final int id)
+    {
+        if (flags == null)
+            rebuild();
+        return flags[id & (MAX_ID - 1)];
+    }
+
+    public static int flagsOf(final Block b)
+    {
+        return flagsOf(Block.getIdFromBlock(b));
+    }
+
+    public static int classOf(final int id)
+    {
+        if (classes == null)
+            rebuild();
+        return classes[id & (MAX_ID - 1)];
+    }
+
+    /** Whether flow of the given fluid breaks b */
+    public static boolean canBreak(final BlockFiniteFluid f, final Block b)
+    {
+        return (flagsOf(b) & (f.cellClass == FluidData.CLASS_LAVA ? BREAK_LAVA : BREAK_WATER)) != 0;
+    }
+
+    /** Whether b is a mod fluid that absorbs a little of the given fluid */
+    public static boolean isSink(final BlockFiniteFluid f, final Block b)
+    {
+        return (flagsOf(b) & (f.cellClass == FluidData.CLASS_LAVA ? SINK_LAVA : SINK_WATER)) != 0;
+    }
+}
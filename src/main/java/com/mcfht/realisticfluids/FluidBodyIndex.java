@@ -0,0 +1,488 @@
+package com.mcfht.realisticfluids;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.minecraft.world.World;
+
+import com.mcfht.realisticfluids.FluidData.ChunkCache;
+import com.mcfht.realisticfluids.FluidData.ChunkData;
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
+
+/**
+ * Index of connected bodies of the same fluid, one per world.
+ *
+ * <p>
+ * Lakes used to level out one cell per sweep: a bucket taken from a big lake
+ * left a hole that took many sweeps of doUpdate and equalizer tasks to fill.
+ * Now a disturbed body is found (flood fill, bounded), remembered, and its
+ * whole top layer is levelled in one task.
+ *
+ * <p>
+ * Bodies are merged with weighted union (the smaller body is relabelled
+ * into the larger one) when a cell gets wet next to two of them. Cuts are
+ * not tracked: a cell going dry marks its body dirty, and the body is flood
+ * filled again the next time it is used.
+ *
+ * <p>
+ * Everything here runs on the server thread.
+ *
+ * @author FHT
+ */
+public class FluidBodyIndex
+{
+    /** Bodies bigger than this are left alone (oceans) */
+    public static int                   MAX_CELLS   = 65536;
+    /** Ticks to wait before trying to index around a chunk that overflowed */
+    public static final int             OVERFLOW_BACKOFF = 1200;
+
+    /** A growable list of packed cells */
+    static class Cells
+    {
+        long[]  a   = new long[16];
+        int     n   = 0;
+
+        void add(final long p)
+        {
+            if (this.n == this.a.length)
+            {
+                final long[] b = new long[this.n << 1];
+                System.arraycopy(this.a, 0, b, 0, this.n);
+                this.a = b;
+            }
+            this.a[this.n++] = p;
+        }
+    }
+
+    public static class Body
+    {
+        final int               id;
+        final BlockFiniteFluid  f;
+        final Cells             cells       = new Cells();
+        /** Total fluid in the body */
+        long                    volume;
+        /** Height of the top layer */
+        int                     surfaceY;
+        /** Some cell went dry, the body may be cut in pieces */
+        boolean                 dirty;
+        /** Tick this body was last levelled */
+        int                     levelled    = -1;
+        /**
+         * Changes that moved the flood front during frontierTick. Only a
+         * statistic: the update set itself is kept down by
+         * FluidData.isFrontierChange, this just counts what got through
+         */
+        int                     frontier    = 0;
+        int                     frontierTick = -1;
+
+        Body(final int id, final BlockFiniteFluid f)
+        {
+            this.id = id;
+            this.f = f;
+        }
+
+        public int size()
+        {
+            return this.cells.n;
+        }
+
+        /** Number of frontier changes this tick, 0 once the body has settled */
+        public int frontierSize()
+        {
+            return this.frontierTick == RealisticFluids.tickCounter() ? this.frontier : 0;
+        }
+
+        void addFrontier()
+        {
+            final int tick = RealisticFluids.tickCounter();
+            if (this.frontierTick != tick)
+            {
+                this.frontier = 0;
+                this.frontierTick = tick;
+            }
+            this.frontier++;
+        }
+    }
+
+    /** Cell to body id. Always the id of the root, since unions relabel */
+    final HashMap<Long, Integer>   nodeOf      = new HashMap<Long, Integer>();
+    /** Chunks unloaded since the last prune, see dropChunk */
+    final HashSet<Long>            unloaded    = new HashSet<Long>();
+    final List<Body>               bodies      = new ArrayList<Body>();
+    /** Recycled body ids */
+    final Cells                    free        = new Cells();
+
+    /** The index of the given world */
+    public static FluidBodyIndex of(final World w)
+    {
+        final ChunkCache cache = FluidData.worldCache.get(w);
+        return cache == null ? null : cache.bodies;
+    }
+
+    // Packed cells: 26 bits x, 26 bits z, 8 bits y
+    public static long pack(final int x, final int y, final int z)
+    {
+        return ((long) (x & 0x3FFFFFF) << 34) | ((long) (z & 0x3FFFFFF) << 8) | (y & 0xFF);
+    }
+
+    public static int unpackX(final long p)
+    {
+        return ((int) (p >>> 34)) << 6 >> 6;
+    }
+
+    public static int unpackY(final long p)
+    {
+        return (int) (p & 0xFF);
+    }
+
+    public static int unpackZ(final long p)
+    {
+        return ((int) (p >>> 8) & 0x3FFFFFF) << 6 >> 6;
+    }
+
+    public Body bodyAt(final int x, final int y, final int z)
+    {
+        final Integer id = this.nodeOf.get(pack(x, y, z));
+        return id == null ? null : this.bodies.get(id);
+    }
+
+    private Body newBody(final BlockFiniteFluid f)
+    {
+        final Body b;
+        if (this.free.n > 0)
+        {
+            b = new Body((int) this.free.a[--this.free.n], f);
+            this.bodies.set(b.id, b);
+        } else
+        {
+            b = new Body(this.bodies.size(), f);
+            this.bodies.add(b);
+        }
+        return b;
+    }
+
+    /** Forgets a body and all of its cells */
+    private void discard(final Body b)
+    {
+        for (int i = 0; i < b.cells.n; i++)
+        {
+            final Long key = b.cells.a[i];
+            final Integer id = this.nodeOf.get(key);
+            if (id != null && id.intValue() == b.id)
+                this.nodeOf.remove(key);
+        }
+        this.bodies.set(b.id, null);
+        this.free.add(b.id);
+    }
+
+    /** Weighted union, returns the surviving body */
+    private Body union(Body a, Body b)
+    {
+        if (a == b)
+            return a;
+        if (a.size() < b.size())
+        {
+            final Body t = a;
+            a = b;
+            b = t;
+        }
+        final Integer id = a.id;
+        for (int i = 0; i < b.cells.n; i++)
+        {
+            this.nodeOf.put(b.cells.a[i], id);
+            a.cells.add(b.cells.a[i]);
+        }
+        a.volume += b.volume;
+        a.surfaceY = Math.max(a.surfaceY, b.surfaceY);
+        a.dirty |= b.dirty;
+        this.bodies.set(b.id, null);
+        this.free.add(b.id);
+        return a;
+    }
+
+    /**
+     * Returns the body containing x, y, z, flood filling it if it is unknown
+     * or dirty. Null if the cell holds no fluid or the body is too big.
+     */
+    public Body find(final ChunkData data, final BlockFiniteFluid f, final int x, final int y, final int z)
+    {
+        final Body b = this.bodyAt(x, y, z);
+        if (b != null && !b.dirty)
+            return b;
+        if (FluidData.getCellClassWorld(data, x, y, z) != f.cellClass)
+            return null;
+        if (data.bodyOverflow >= 0 && RealisticFluids.tickCounter() - data.bodyOverflow < OVERFLOW_BACKOFF)
+            return null;
+        return this.flood(data, f, x, y, z);
+    }
+
+    private Body flood(final ChunkData origin, final BlockFiniteFluid f, final int x0, final int y0, final int z0)
+    {
+        ChunkData data = origin;
+        final Body body = this.newBody(f);
+        final Integer id = body.id;
+        final Cells cells = body.cells;
+        body.surfaceY = y0;
+        cells.add(pack(x0, y0, z0));
+        this.claim(cells.a[0], id);
+
+        for (int i = 0; i < cells.n; i++)
+        {
+            final long p = cells.a[i];
+            final int x = unpackX(p), y = unpackY(p), z = unpackZ(p);
+            final ChunkData here = FluidData.testCurrentChunkData(data, x, z);
+            if (here == null)
+                continue;
+            data = here;
+            body.volume += FluidData.getLevel(data, f, x & 0xF, y, z & 0xF);
+            body.surfaceY = Math.max(body.surfaceY, y);
+
+            for (int d = 0; d < 6; d++)
+            {
+                final int x1 = x + (d < 4 ? Util.cardinalX(d) : 0);
+                final int y1 = y + (d == 4 ? 1 : (d == 5 ? -1 : 0));
+                final int z1 = z + (d < 4 ? Util.cardinalZ(d) : 0);
+                if (y1 < 0 || y1 > 255)
+                    continue;
+                final long p1 = pack(x1, y1, z1);
+                final Integer old = this.nodeOf.get(p1);
+                if (old != null && old.intValue() == body.id)
+                    continue;
+                final ChunkData data1 = FluidData.testCurrentChunkData(data, x1, z1);
+                if (data1 == null || data1.getCellClass(x1 & 0xF, y1, z1 & 0xF) != f.cellClass)
+                    continue;
+                if (cells.n >= MAX_CELLS)
+                {
+                    // Too big, probably an ocean. Forget it, and don't try again here for a while
+                    this.discard(body);
+                    origin.bodyOverflow = RealisticFluids.tickCounter();
+                    return null;
+                }
+                this.claim(p1, id);
+                cells.add(p1);
+            }
+        }
+        return body;
+    }
+
+    /** Maps a cell to a body, taking it (and its old body) from any other body */
+    private void claim(final long p, final Integer id)
+    {
+        final Integer old = this.nodeOf.put(p, id);
+        if (old != null && old.intValue() != id.intValue())
+        {
+            // Part of the same water after all; the old body is stale
+            final Body b = this.bodies.get(old);
+            if (b != null)
+                this.discard(b);
+            this.nodeOf.put(p, id);
+        }
+    }
+
+    /**
+     * Called by FluidData.setLevel when the level of a cell changes.
+     */
+    public static void levelChanged(final ChunkData data, final Object f, final int x, final int y, final int z, final int l0, final int l1)
+    {
+        final FluidBodyIndex index = of(data.w);
+        if (index != null)
+            index.onLevelChange(data, f instanceof BlockFiniteFluid ? ((BlockFiniteFluid) f).cellClass : -1, x, y, z, l0, l1);
+    }
+
+    /**
+     * Keeps the index up to date when FluidData.setLevel changes a cell.
+     */
+    public void onLevelChange(final ChunkData data, final int cls, final int x, final int y, final int z, final int l0, final int l1)
+    {
+        Body b = this.bodyAt(x, y, z);
+        if (b != null)
+        {
+            b.volume += l1 - l0;
+            if (l1 <= 0)
+                b.dirty = true;
+            if (FluidData.isFrontierChange(l0, l1))
+                b.addFrontier();
+            return;
+        }
+        if (l1 <= 0 || l0 > 0)
+            return;
+
+        // A new wet cell, join (and merge) the bodies next to it
+        for (int d = 0; d < 6; d++)
+        {
+            final int y1 = y + (d == 4 ? 1 : (d == 5 ? -1 : 0));
+            final Body n = this.bodyAt(x + (d < 4 ? Util.cardinalX(d) : 0), y1, z + (d < 4 ? Util.cardinalZ(d) : 0));
+            if (n == null || n.f.cellClass != cls)
+                continue;
+            b = b == null ? n : this.union(b, n);
+        }
+        if (b != null)
+        {
+            final long p = pack(x, y, z);
+            this.nodeOf.put(p, b.id);
+            b.cells.add(p);
+            b.volume += l1;
+            b.surfaceY = Math.max(b.surfaceY, y);
+            b.addFrontier();
+        }
+    }
+
+    /**
+     * Something was taken from or put into the fluid at x, y, z (buckets,
+     * blocks). Schedules the body around it to be levelled.
+     */
+    public void disturb(final ChunkData data, final BlockFiniteFluid f, final int x, final int y, final int z)
+    {
+        final Body b = this.bodyAt(x, y, z);
+        if (b != null)
+            b.dirty = true;
+        for (int d = 0; d < 6; d++)
+        {
+            final int y1 = y + (d == 4 ? 1 : (d == 5 ? -1 : 0));
+            final int x1 = x + (d < 4 ? Util.cardinalX(d) : 0), z1 = z + (d < 4 ? Util.cardinalZ(d) : 0);
+            if (y1 < 0 || y1 > 255 || FluidData.getCellClassWorld(data, x1, y1, z1) != f.cellClass)
+                continue;
+            FluidEqualizer.addBodyTask(data.w, x1, y1, z1, f);
+            return;
+        }
+    }
+
+    /**
+     * Levels the top layer of the body at x, y, z in one go, filling holes in
+     * the surface that have fluid under them.
+     *
+     * @return The number of cells touched
+     */
+    public int levelSurface(ChunkData data, final BlockFiniteFluid f, final int x0, final int y0, final int z0)
+    {
+        final Body b = this.find(data, f, x0, y0, z0);
+        if (b == null)
+            return 1;
+        final int tick = RealisticFluids.tickCounter();
+        if (b.levelled == tick)
+            return 1;
+        b.levelled = tick;
+
+        final int sy = b.surfaceY;
+        final Cells top = new Cells();
+        final HashSet<Long> holes = new HashSet<Long>();
+        long sum = 0;
+        for (int i = 0; i < b.cells.n; i++)
+        {
+            final long p = b.cells.a[i];
+            if (unpackY(p) != sy)
+                continue;
+            final int x = unpackX(p), z = unpackZ(p);
+            data = FluidData.testCurrentChunkData(data, x, z);
+            if (data == null)
+                return 1; // Partly unloaded, leave it
+            top.add(p);
+            sum += FluidData.getLevel(data, f, x & 0xF, sy, z & 0xF);
+
+            for (int d = 0; d < 4; d++)
+            {
+                final int x1 = x + Util.cardinalX(d), z1 = z + Util.cardinalZ(d);
+                final ChunkData data1 = FluidData.testCurrentChunkData(data, x1, z1);
+                if (data1 != null && sy > 0 && data1.getCellClass(x1 & 0xF, sy, z1 & 0xF) == FluidData.CLASS_AIR
+                        && data1.getCellClass(x1 & 0xF, sy - 1, z1 & 0xF) == f.cellClass)
+                    holes.add(pack(x1, sy, z1));
+            }
+        }
+        final int n = top.n + holes.size();
+        if (n == 0)
+            return 1;
+        final int avg = (int) (sum / n);
+        int rem = (int) (sum % n);
+        // Too thin to spread, leave it to the flow
+        if (avg < f.viscosity)
+            return n;
+
+        for (int i = 0; i < top.n; i++)
+        {
+            final long p = top.a[i];
+            final int x = unpackX(p), z = unpackZ(p);
+            data = FluidData.forceCurrentChunkData(data, x, z);
+            final int l = avg + (rem-- > 0 ? 1 : 0);
+            final int l0 = FluidData.getLevel(data, f, x & 0xF, sy, z & 0xF);
+            if (Util.getMetaFromLevel(l) == Util.getMetaFromLevel(l0))
+            {
+                data.setLevel(x & 0xF, sy, z & 0xF, l); // Looks the same, just move the fluid
+                this.onLevelChange(data, f.cellClass, x, sy, z, l0, l);
+            } else
+                FluidData.setLevelWorld(data, f, x, sy, z, l, false);
+        }
+        for (final Long p : holes)
+        {
+            final int x = unpackX(p), z = unpackZ(p);
+            data = FluidData.forceCurrentChunkData(data, x, z);
+            FluidData.setLevelWorld(data, f, x, sy, z, avg + (rem-- > 0 ? 1 : 0), true);
+        }
+        return n;
+    }
+
+    /** Unloaded chunks to gather before pruning the index */
+    static final int                PRUNE_BATCH = 64;
+
+    /**
+     * Forgets the cells in a chunk that unloaded. Finding them means a pass
+     * over every indexed cell, so chunks are gathered and pruned in batches.
+     */
+    public void dropChunk(final int chunkX, final int chunkZ)
+    {
+        this.unloaded.add(((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL));
+        if (this.unloaded.size() >= PRUNE_BATCH)
+            this.prune();
+    }
+
+    /**
+     * Drops every body with cells in an unloaded chunk. They are flood filled
+     * again from what is still loaded the next time they are needed.
+     */
+    public void prune()
+    {
+        if (this.unloaded.isEmpty())
+            return;
+        final HashSet<Integer> gone = new HashSet<Integer>();
+        for (final Iterator<Map.Entry<Long, Integer>> it = this.nodeOf.entrySet().iterator(); it.hasNext();)
+        {
+            final Map.Entry<Long, Integer> e = it.next();
+            final long p = e.getKey();
+            if (this.unloaded.contains(((long) (unpackX(p) >> 4) << 32) | ((unpackZ(p) >> 4) & 0xFFFFFFFFL)))
+            {
+                gone.add(e.getValue());
+                it.remove();
+            }
+        }
+        for (final Integer id : gone)
+        {
+            final Body b = this.bodies.get(id);
+            if (b != null)
+                this.discard(b);
+        }
+        this.unloaded.clear();
+    }
+
+    public int bodyCount()
+    {
+        return this.bodies.size() - this.free.n;
+    }
+
+    public int cellCount()
+    {
+        return this.nodeOf.size();
+    }
+
+    /** Frontier changes this tick, over all bodies */
+    public int frontierCount()
+    {
+        int n = 0;
+        for (final Body b : this.bodies)
+            if (b != null)
+                n += b.frontierSize();
+        return n;
+    }
+}
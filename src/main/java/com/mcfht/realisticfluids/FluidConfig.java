@@ -1,6 +1,7 @@
 package com.mcfht.realisticfluids;
 
 import com.mcfht.realisticfluids.RealisticFluids.RainType;
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
 
 import net.minecraftforge.common.config.Configuration;
 
@@ -42,6 +43,47 @@ public class FluidConfig
 
 		RealisticFluids.GLOBAL_RATE_MAX = Math.max(RealisticFluids.GLOBAL_RATE_AIM, RealisticFluids.GLOBAL_RATE_MAX);
 		RealisticFluids.GLOBAL_RATE = RealisticFluids.GLOBAL_RATE_AIM;
+		RealisticFluids.phaseCost = new int[RealisticFluids.GLOBAL_RATE_MAX];
+
+		RealisticFluids.FLOW_ENGINE = config.getInt("flowEngine", GENERAL, RealisticFluids.ENGINE_CELL, 0, 2,
+				"Flow engine. 0 = cell by cell, 1 = section kernel (copies each section into local buffers), 2 = kernels computed on other threads");
+		RealisticFluids.KERNEL_MIN_CELLS = config.getInt("kernelMinCells", GENERAL, 64, 1, 4096,
+				"With flow engine 1 or 2, sections with fewer cells to update than this run cell by cell");
+
+		RealisticFluids.FAST_FALL = config.getBoolean("fastFall", GENERAL, false,
+				"Fluid over a drop lands at the bottom in one step, with a stream of particles instead of falling blocks");
+
+		RealisticFluids.MULTI_RATE = config.getBoolean("multiRate", GENERAL, false,
+				"Sweep distant chunks less often the further they are from players, in bigger steps");
+		RealisticFluids.RATE_RING_WIDTH = config.getInt("multiRateRingWidth", GENERAL, 2, 1, 32,
+				"Width of each slower ring, in chunks");
+		RealisticFluids.RATE_MAX_MULTIPLE = config.getInt("multiRateMaxMultiple", GENERAL, 4, 1, 16,
+				"The furthest chunks are swept once every this many sweeps");
+
+		RealisticFluids.LOD_ENABLED = config.getBoolean("lodSimulation", GENERAL, false,
+				"Simulate settled distant chunks as columns of fluid instead of cell by cell");
+		RealisticFluids.LOD_RANGE = config.getInt("lodRange", GENERAL, 3, 1, 32,
+				"Chunks further than this from every player are simulated as columns. Chunks within UpdateRangeNear never are, and it must be less than UpdateRangeFar to matter");
+
+		RealisticFluids.TIMING_WHEEL = config.getBoolean("timingWheel", GENERAL, false,
+				"Park lava cells until the sweep they flow in, instead of rescanning them every sweep");
+
+		RealisticFluids.SPLIT_FLUID_SETS = config.getBoolean("splitFluidSets", GENERAL, false,
+				"Keep pending lava updates apart from water, so water sweeps don't scan lava. Helps in the nether");
+
+		RealisticFluids.JACOBI = config.getBoolean("orderIndependentFlow", GENERAL, false,
+				"With flow engine 1 or 2, every cell of a sweep reads the levels the sweep started with. Deterministic, no directional bias, a bit slower to spread");
+
+		RealisticFluids.TRANSFER_INBOX = config.getBoolean("crossChunkInbox", GENERAL, false,
+				"Flow into a neighbouring chunk is posted to it and added by that chunk's own update, instead of written directly");
+
+		RealisticFluids.STAGGER_SWEEPS = config.getBoolean("staggerSweeps", GENERAL, false,
+				"Sweep a share of the chunks every tick, instead of all of them once per update interval");
+
+		RealisticFluids.IDLE_SIMULATION = config.getBoolean("idleFarSimulation", GENERAL, false,
+				"Run far chunks left over from the sweep on the pipeline threads while the server waits for the next tick");
+		RealisticFluids.IDLE_RESERVE = config.getInt("idleReserveMs", GENERAL, 10, 0, 45,
+				"Milliseconds at the end of each tick that idle time work leaves alone");
 
 		// /////////////// EQUALIZATION STUFZ /////////////
 		RealisticFluids.EQUALIZE_FAR = config.getInt("EqualizeLinearFar", EQUALIZE, 16, 1, 64,
@@ -52,9 +94,37 @@ public class FluidConfig
 		RealisticFluids.EQUALIZE_GLOBAL = 5 * config.getInt("globalEqualizeCap", EQUALIZE, 8, 1, 1024,
 				"Max Equalizations per tick. More causes faster equalization. Sane values: 4 ~ 32");
 
+		RealisticFluids.BODY_INDEX = config.getBoolean("bodyIndex", EQUALIZE, false,
+				"Track connected lakes, and level a disturbed lake's whole surface at once");
+		FluidBodyIndex.MAX_CELLS = config.getInt("bodyIndexMaxCells", EQUALIZE, 65536, 1024, 4194304,
+				"Largest lake to track. Bigger bodies (oceans) are left to normal flow");
+
+		RealisticFluids.FREEZE_SETTLED = config.getBoolean("freezeSettled", EQUALIZE, false,
+				"Stop tracking levels in settled, flat water until something disturbs it. Saves memory and CPU in calm oceans");
+		RealisticFluids.FREEZE_SWEEPS = config.getInt("freezeSweeps", EQUALIZE, 20, 4, 127,
+				"Number of idle update sweeps before water counts as settled");
+
+		RealisticFluids.OCEAN_RESERVOIR = config.getBoolean("oceanReservoir", EQUALIZE, false,
+				"Treat ocean water at and below sea level as an infinite reservoir. Only the shoreline is simulated");
+
+		RealisticFluids.FRONTIER_TRACKING = config.getBoolean("frontierTracking", EQUALIZE, false,
+				"Only wake neighbouring cells for changes that move the flood front, so levelled water stops being rescanned");
+		RealisticFluids.FRONTIER_THRESHOLD = config.getInt("frontierThreshold", EQUALIZE, BlockFiniteFluid.FLOW_THRESHOLD << 6,
+				BlockFiniteFluid.FLOW_THRESHOLD, RealisticFluids.MAX_FLUID >> 3,
+				"Smallest transfer that wakes the neighbours. One eighth of a block is " + (RealisticFluids.MAX_FLUID >> 3));
+
 		// /////////////// COREMOD STUFZ //////////////////
 		RealisticFluids.ASM_DOOR = config.getBoolean("patchVanillaDoors", CORE, true,
-				"Force vanilla doors to throw block updates when opened (allowing water to flow through them)");
+				"Wake fluid next to vanilla doors and trapdoors when they are toggled (allowing water to flow through them)");
+
+		RealisticFluids.DEFERRED_CAPACITY = config.getInt("deferredQueueCapacity", GENERAL, 65536, 1024, 10000000,
+				"Max number of deferred block writes waiting for the server thread before producers are held back");
+		RealisticFluids.DEFERRED_BUDGET = config.getInt("deferredDrainBudget", GENERAL, 5000000, 100000, 50000000,
+				"Time per tick spent performing deferred block writes, in nanoseconds");
+
+		// /////////////// NETWORK STUFZ //////////////////
+		RealisticFluids.PACKET_DELTAS = config.getBoolean("compactFluidPackets", GENERAL, false,
+				"Send fluid level changes as compact per-chunk delta packets instead of vanilla block changes");
 
         // /////////////// Absorpotion / Evaporation / Rainfall //////
         RealisticFluids.ABSORB = config.getInt("AbsorptionThreshold", GENERAL,
@@ -42,11 +42,16 @@ package com.mcfht.realisticfluids;
 
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import net.minecraft.block.Block;
 import net.minecraft.block.material.Material;
 import net.minecraft.init.Blocks;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 
 import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
 
@@ -61,9 +66,37 @@ import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
 public class FluidData
 {
 
+    // ////////////////////////// CELL CLASSES //////////////////////////
+    // What flow needs to know about a cell, see ChunkData.getCellClass
+    public static final int CLASS_AIR       = 0;
+    public static final int CLASS_WATER     = 1;
+    public static final int CLASS_LAVA      = 2;
+    /** Fences and bars, fluid flows through them */
+    public static final int CLASS_PASSABLE  = 3;
+    /** Torches, plants etc, flow breaks them */
+    public static final int CLASS_BREAKABLE = 4;
+    public static final int CLASS_SOLID     = 5;
+    /** Any liquid that is not ours */
+    public static final int CLASS_MOD_FLUID = 6;
+
+    /** Number of idle sweeps before a section forgets its classes */
+    public static final int CLASS_IDLE_SWEEPS = 4;
+
+    /**
+     * Classifies a block. Matches the tests of BlockFiniteFluid.checkFlow and
+     * canBreak, see FluidBehaviour.
+     */
+    public static int classify(final Block b)
+    {
+        return FluidBehaviour.classOf(Block.getIdFromBlock(b));
+    }
+
     /** A map assigning Chunk Data to the corresponding World object */
     public static LinkedHashMap<World, ChunkCache>	worldCache	= new LinkedHashMap<World, ChunkCache>(16);
 
+    /** Source of ChunkData epochs */
+    static final AtomicInteger nextEpoch = new AtomicInteger(0);
+
     /* Volatile variable just for forcing threaded memory flushing. */
     public static /* volatile */ int sanityFlush=0;
 
@@ -124,6 +157,10 @@ public class FluidData
         public LinkedHashSet<Chunk>			priority	= new LinkedHashSet<Chunk>();
         /** Set of distant chunks to be updated if we have time */
         public LinkedHashSet<Chunk>			distant		= new LinkedHashSet<Chunk>();
+        /** Connected fluid bodies of this world */
+        public FluidBodyIndex				bodies		= new FluidBodyIndex();
+        /** Cells waiting for their fluid's turn */
+        public FluidTimingWheel				wheel		= new FluidTimingWheel();
         /**
          * A cache which maps Chunk Data to each Chunk, and also contains thread
          * safe updating queues of near and distant chunks.
@@ -137,8 +174,11 @@ public class FluidData
     public static class ChunkData
     {
         // INSTANTIATED
-        /** Array of fluid levels */
-        public int[][]		fluidArray		= new int[16][4096];
+        /**
+         * Fluid levels, per section. Atomic so that border cells, which the
+         * workers of two chunks can write, take compare-and-set
+         */
+        public AtomicIntegerArray[]	fluidArray	= new AtomicIntegerArray[16];
         VolatileBool [] fluidGuard          = VolatileBool.create(16);
 
         /** A map of update flags, divided into EBS arrays */
@@ -154,6 +194,62 @@ public class FluidData
         /** A simple counter telling us whether or not a given cube has updates */
         public boolean[]	updateCounter	= new boolean[16];
 
+        /**
+         * Pending updates of lava cells, kept apart from updateFlags so water
+         * sweeps never scan them. Only used with SPLIT_FLUID_SETS.
+         */
+        public boolean[][]  lavaFlags       = new boolean[16][];
+        public boolean[]    lavaCounter     = new boolean[16];
+
+        /** Whether this chunk was in priority range of a player on the last sweep */
+        public boolean      isNear          = false;
+
+        /** Cells whose meta changed since the last delta packet, see FluidNetwork */
+        public long[][]     deltaMask       = new long[16][];
+        public boolean      deltaQueued     = false;
+
+        /** Cached direct views of the chunk sections */
+        SectionView[]       sectionViews    = new SectionView[16];
+
+        /**
+         * Packed cell classes of the active sections, one nibble per cell.
+         * Built on first use, patched on block changes, dropped when idle.
+         */
+        public byte[][]     classMap        = new byte[16][];
+        /** Sweeps since each section last had updates */
+        byte[]              idleSweeps      = new byte[16];
+        /**
+         * Settled sections. Their levels are plain vanilla metadata again,
+         * until the next update thaws them. See freezeSection.
+         */
+        public boolean[]    frozen          = new boolean[16];
+
+        /** Cached ocean reservoir floor of each column, see FluidReservoir */
+        short[]             reservoirFloor  = null;
+
+        /** Tick a fluid body too big to index was found here, or -1 */
+        int                 bodyOverflow    = -1;
+
+        /** Sweeps this chunk sat out since its last one, see RealisticFluids.isSweepDue */
+        int                 sweepsSkipped   = 0;
+        /** Sweeps the next update of this chunk has to make up for */
+        public int          elapsedSweeps   = 1;
+
+        /**
+         * Generation of this chunk data. Each new ChunkData gets a fresh one,
+         * and it goes to -1 when the chunk unloads, so anything holding on to
+         * an old one can tell it is dead.
+         */
+        public volatile int epoch           = nextEpoch.incrementAndGet();
+
+        /** Fluid sent here from other chunks, see TransferInbox */
+        public final TransferInbox inbox    = new TransferInbox();
+
+        /** Column volumes while the chunk is far away, see FluidLOD */
+        public FluidLOD     lod             = null;
+        /** Something touched the chunk while collapsed, expand it */
+        public boolean      lodWake         = false;
+
         /**
          * Initialize a new Chunk Data object for the chunk in the given world
          * 
@@ -191,7 +287,7 @@ public class FluidData
         {
 //            Block b0=c.getBlock(cx, cy, cz);
 //            if (b0 instanceof BlockFiniteFluid)
-                return this.fluidArray[wy >> 4][cx + (cz << 4) + ((wy & 0xF) << 8)];
+                return this.fluidArray[wy >> 4].get(cx + (cz << 4) + ((wy & 0xF) << 8));
 //            throw new RuntimeException("Sanity failure! getFluid on non-fluid block");
 // Silly me. Sanity actually calls this, and depends on getting the raw value.
         }
@@ -201,6 +297,12 @@ public class FluidData
          * Sets actual fluid level
          * Caller must clear block if set to zero
          */
+        /** Marks this chunk data dead, after its chunk unloaded */
+        public void invalidate()
+        {
+            this.epoch = -1;
+        }
+
         /**
          * Gets level in cx cy cz
          * 
@@ -216,7 +318,7 @@ public class FluidData
                 l=l;  // BREAKPOINT:
             }
             int idx=cx + (cz << 4) + ((cy & 0xF) << 8);
-            this.fluidArray[cy >> 4][idx] = l;
+            this.fluidArray[cy >> 4].set(idx, l);
         }
 
         /**
@@ -261,9 +363,42 @@ public class FluidData
             sanitySyncFlush();
         }
 
+        /**
+         * Sets the level in cx cy cz to update, if it still holds expect.
+         * Safe against other threads doing the same on the cell. Like
+         * setLevel, the caller must fix up the block.
+         * 
+         * @return False if the cell no longer held expect
+         */
+        public boolean compareAndSetLevel(final int cx, final int wy, final int cz, final int expect, final int update)
+        {
+            sanityLevelBlock(cx, wy, cz);
+            return this.fluidArray[wy >> 4].compareAndSet(cx + (cz << 4) + ((wy & 0xF) << 8), expect, update);
+        }
+
+        /**
+         * Atomically adds delta to the level in cx cy cz, clamped to 0 and
+         * MAX_FLUID. Like setLevel, the caller must fix up the block.
+         * 
+         * @return The part of delta that did not fit
+         */
+        public int addClamped(final int cx, final int wy, final int cz, final int delta)
+        {
+            sanityLevelBlock(cx, wy, cz);
+            final AtomicIntegerArray a = this.fluidArray[wy >> 4];
+            final int i = cx + (cz << 4) + ((wy & 0xF) << 8);
+            int l0, l1;
+            do
+            {
+                l0 = a.get(i);
+                l1 = Math.max(0, Math.min(RealisticFluids.MAX_FLUID, l0 + delta));
+            } while (!a.compareAndSet(i, l0, l1));
+            return delta - (l1 - l0);
+        }
+
         /**
          * Tries to put the specified amount of fluid into the cell, and returns
-         * the "overflow", along with the level of the now full block.
+         * the new level along with the "overflow". Does not touch the block.
          * 
          * @param cx
          * @param wy
@@ -272,37 +407,10 @@ public class FluidData
          */
         public int[] addSetLevel(final int cx, final int wy, final int cz, final int l)
         {
-            // ** This routine is not actually used **
-            // Synchronization of this routine is questionable at best.
-            // Again, it works if everything is chunk-local implying single thread.
-            //
-            // ** DANGER ** Does not seem to ever adjust the meta-data of the block in question!
             if (l < 0)
                 throw new RuntimeException ("Attempted to flow negative fluid into a block");
-            int oldLevel = getLevel(cx, wy, cz);    // Does a read sync
-            int newLevel = oldLevel + l;
-            int remainder = newLevel - RealisticFluids.MAX_FLUID;
-            
-            if (remainder < 0)
-                remainder = 0;
-            if (newLevel > RealisticFluids.MAX_FLUID)
-                newLevel = RealisticFluids.MAX_FLUID;
-            
-            setLevel(cx, wy, cz, newLevel);         // Does a write flush sync
-            
-            return new int[] {newLevel, remainder};
-        /*
-            if (this.fluidArray[cy >> 4] == null)
-                this.fluidArray[cy >> 4] = new int[4096];
-
-            final int i = this.fluidArray[cy >> 4][cx + (cz << 4) + ((cy & 0xF) << 4)];
-
-            this.fluidArray[cy >> 4][cx + (cz << 4) + ((cy & 0xF) << 4)] = (i + l > RealisticFluids.MAX_FLUID
-                    ? RealisticFluids.MAX_FLUID
-                    : i + l);
-            return new int[]
-            {i + l, Math.max(0, i + l - RealisticFluids.MAX_FLUID)};
-        */
+            final int remainder = addClamped(cx, wy, cz, l);
+            return new int[] {getFluid(cx, wy, cz), remainder};
         }
 
         /*
@@ -402,7 +510,7 @@ public class FluidData
                     // "&&" forces testing AFTER fluidGuard is tested.
                     if (false == fluidGuard[wy >> 4].value && this.fluidArray[wy >> 4] == null)
                     {
-                        this.fluidArray[wy >> 4] = new int[4096];
+                        this.fluidArray[wy >> 4] = new AtomicIntegerArray(4096);
                         fluidGuard[wy >> 4].value = true;
                     }
                 }
@@ -476,6 +584,145 @@ public class FluidData
         }
 
 
+        /**
+         * Returns a direct view of the section at sy, or null if the chunk has
+         * no storage there (all air).
+         * 
+         * @param sy
+         * @return
+         */
+        public SectionView getSectionView(final int sy)
+        {
+            SectionView view = this.sectionViews[sy];
+            if (view != null && view.isCurrent())
+                return view;
+            final ExtendedBlockStorage ebs = this.c.getBlockStorageArray()[sy];
+            if (ebs == null)
+                return null;
+            return this.sectionViews[sy] = new SectionView(this.c, sy, ebs);
+        }
+
+        /**
+         * Returns the class of a cell, see FluidData.classify
+         * 
+         * @param cx
+         * @param wy
+         * @param cz
+         * @return
+         */
+        public int getCellClass(final int cx, final int wy, final int cz)
+        {
+            byte[] map = this.classMap[wy >> 4];
+            if (map == null)
+                map = this.buildClassMap(wy >> 4);
+            final int idx = cx + (cz << 4) + ((wy & 0xF) << 8);
+            return (map[idx >> 1] >> ((idx & 1) << 2)) & 0xF;
+        }
+
+        /** Patches the class of a cell after a block change. Cheap when the section is not classified */
+        public void setCellClass(final int cx, final int wy, final int cz, final Block b)
+        {
+            if (this.reservoirFloor != null)
+                this.reservoirFloor[cx + (cz << 4)] = FluidReservoir.UNKNOWN;
+            final byte[] map = this.classMap[wy >> 4];
+            if (map == null)
+                return;
+            final int idx = cx + (cz << 4) + ((wy & 0xF) << 8);
+            final int shift = (idx & 1) << 2;
+            map[idx >> 1] = (byte) ((map[idx >> 1] & ~(0xF << shift)) | (classify(b) << shift));
+        }
+
+        /** Re-reads the block of a cell into the class map */
+        public void refreshCellClass(final int cx, final int wy, final int cz)
+        {
+            if (this.classMap[wy >> 4] != null)
+                this.setCellClass(cx, wy, cz, this.c.getBlock(cx, wy, cz));
+        }
+
+        byte[] buildClassMap(final int sy)
+        {
+            final byte[] map = new byte[2048];
+            final ExtendedBlockStorage ebs = this.c.getBlockStorageArray()[sy];
+            if (ebs != null) // Otherwise all air, which is 0
+            {
+                // Straight from the raw block IDs, same layout as our cell index
+                final byte[] lsb = ebs.getBlockLSBArray();
+                final NibbleArray msb = ebs.getBlockMSBArray();
+                for (int idx = 0; idx < 4096; idx++)
+                {
+                    int id = lsb[idx] & 0xFF;
+                    if (msb != null)
+                        id |= ((msb.data[idx >> 1] >> ((idx & 1) << 2)) & 0xF) << 8;
+                    map[idx >> 1] |= FluidBehaviour.classOf(id) << ((idx & 1) << 2);
+                }
+            }
+            return this.classMap[sy] = map;
+        }
+
+        /**
+         * Called once per sweep for each section. Forgets the classes of idle
+         * sections, and freezes the ones that have settled.
+         */
+        public void ageSection(final int sy, final boolean active)
+        {
+            if (active)
+            {
+                this.idleSweeps[sy] = 0;
+                return;
+            }
+            if (this.idleSweeps[sy] < Byte.MAX_VALUE)
+                this.idleSweeps[sy]++;
+            if (this.idleSweeps[sy] >= CLASS_IDLE_SWEEPS)
+                this.classMap[sy] = null;
+            if (RealisticFluids.FREEZE_SETTLED && !this.frozen[sy] && this.idleSweeps[sy] >= RealisticFluids.FREEZE_SWEEPS
+                    && this.fluidArray[sy] != null && !this.freezeSection(sy))
+                this.idleSweeps[sy] = 0; // Not flat yet, don't rescan it every sweep
+        }
+
+        /**
+         * Drops all per-cell tracking of a section whose fluid is flat to
+         * within an eighth. The fluid becomes "full vanilla still water": the
+         * levels are rebuilt from the metadata by sanityLevelBlock when next
+         * read, and the first markUpdate thaws the section.
+         * 
+         * @return Whether the section was frozen
+         */
+        public boolean freezeSection(final int sy)
+        {
+            final AtomicIntegerArray levels = this.fluidArray[sy];
+            int surfaceMeta = -1;
+            for (int idx = 0; idx < 4096; idx++)
+            {
+                final int cx = idx & 0xF, cz = (idx >> 4) & 0xF, wy = (sy << 4) + (idx >> 8);
+                if (!(this.c.getBlock(cx, wy, cz) instanceof BlockFiniteFluid))
+                    continue;
+                final int m = this.c.getBlockMetadata(cx, wy, cz);
+                // Still moving (falling), or the level doesn't match what is shown.
+                // Zero is a cell that was never read, already vanilla.
+                if (m > 7 || (levels.get(idx) != 0 && m != Util.getMetaFromLevel(levels.get(idx))))
+                    return false;
+                if (wy < 255 && this.c.getBlock(cx, wy + 1, cz) instanceof BlockFiniteFluid)
+                    continue;
+                // All of the surface must be at the same height
+                if (surfaceMeta >= 0 && surfaceMeta != m)
+                    return false;
+                surfaceMeta = m;
+            }
+            synchronized (this)
+            {
+                this.fluidGuard[sy].value = false;
+                this.fluidArray[sy] = null;
+                this.updateGuard[sy].value = false;
+                this.updateFlags[sy] = null;
+                this.workingGuard[sy].value = false;
+                this.workingUpdate[sy] = null;
+                this.lavaFlags[sy] = null;
+                this.classMap[sy] = null;
+                this.frozen[sy] = true;
+            }
+            return true;
+        }
+
         private int worldFromChunk(int chunk, int offset)
         {
             return chunk*16 + offset;
@@ -490,6 +737,31 @@ public class FluidData
          */
         public void markUpdate(final int cx, final int cy, final int cz)
         {
+            if (this.lod != null)
+                this.lodWake = true;
+            // First disturbance thaws a settled section
+            if (this.frozen[cy >> 4])
+            {
+                this.frozen[cy >> 4] = false;
+                this.idleSweeps[cy >> 4] = 0;
+            }
+            int idx=cx + (cz << 4) + ((cy & 0xF) << 8);
+            if (RealisticFluids.SPLIT_FLUID_SETS)
+            {
+                final Block b = this.c.getBlock(cx, cy, cz);
+                if (b == Blocks.flowing_lava || b == Blocks.lava)
+                {
+                    if (this.lavaFlags[cy >> 4] == null)
+                        synchronized (this)
+                        {
+                            if (this.lavaFlags[cy >> 4] == null)
+                                this.lavaFlags[cy >> 4] = new boolean[4096];
+                        }
+                    this.lavaCounter[cy >> 4] = true;
+                    this.lavaFlags[cy >> 4][idx] = true;
+                    return;
+                }
+            }
             @SuppressWarnings("unused")
             boolean junk = updateGuard[cy >> 4].value; // Read from a volatile
             if (this.updateFlags[cy >> 4] == null)
@@ -507,7 +779,6 @@ public class FluidData
                 }
             }
             this.updateCounter[cy >> 4] = true;
-            int idx=cx + (cz << 4) + ((cy & 0xF) << 8);
             this.updateFlags[cy >> 4][idx] = true;
             // System.out.println("***********DONE************");
         }
@@ -562,6 +833,19 @@ public class FluidData
 
     }
 
+    /**
+     * Whether a change from l0 to l1 moves the flood front: the cell got wet
+     * or went dry, or a real amount of fluid moved. Smaller changes, inside a
+     * body that has nearly levelled out, do not wake the neighbours, so those
+     * cells drop out of the update set.
+     */
+    public static boolean isFrontierChange(final int l0, final int l1)
+    {
+        if (!RealisticFluids.FRONTIER_TRACKING)
+            return true;
+        return (l0 <= 0) != (l1 <= 0) || Math.abs(l1 - l0) >= RealisticFluids.FRONTIER_THRESHOLD;
+    }
+
     public static void markNeighborsHorizontal(ChunkData data,
             final int x, final int y, final int z)
     {
@@ -598,6 +882,93 @@ public class FluidData
         }
     }
 
+    /**
+     * Returns the class of the cell at world coordinates x, y, z
+     */
+    public static int getCellClassWorld(ChunkData data, final int x, final int y, final int z)
+    {
+        data = FluidData.forceCurrentChunkData(data, x, z);
+        return data.getCellClass(x & 0xF, y, z & 0xF);
+    }
+
+    /**
+     * Re-reads the classes of the six cells around x, y, z. Never loads chunks.
+     */
+    public static void refreshNeighborClasses(final ChunkData data, final int x, final int y, final int z)
+    {
+        if (y < 255)
+            data.refreshCellClass(x & 0xF, y + 1, z & 0xF);
+        if (y > 0)
+            data.refreshCellClass(x & 0xF, y - 1, z & 0xF);
+        for (int i = 0; i < 4; i++)
+        {
+            final int x1 = x + Util.cardinalX(i), z1 = z + Util.cardinalZ(i);
+            final ChunkData data1 = FluidData.testCurrentChunkData(data, x1, z1);
+            if (data1 != null)
+                data1.refreshCellClass(x1 & 0xF, y, z1 & 0xF);
+        }
+    }
+
+    /**
+     * ASM hook, called by Chunk.func_150807_a before every block write (see
+     * PatchChunkWrites). Patches the class map of chunks we track, without
+     * creating data for the others.
+     */
+    public static void onChunkWrite(final Chunk c, final int cx, final int wy, final int cz, final Block b)
+    {
+        // Client chunks too go through here, and are none of ours
+        if (c.worldObj.isRemote)
+            return;
+        final ChunkCache cache = worldCache.get(c.worldObj);
+        if (cache == null)
+            return;
+        final ChunkData data = cache.chunks.get(c);
+        if (data != null)
+            data.setCellClass(cx, wy, cz, b);
+    }
+
+    /**
+     * Forgets the data of an unloading chunk. Fluid still on its way in is
+     * put down first, then the data is invalidated, so tasks queued for it
+     * turn into no-ops, and it is dropped from the update queues.
+     */
+    public static void unloadChunkData(final World w, final Chunk c)
+    {
+        final ChunkCache cache = worldCache.get(w);
+        if (cache == null)
+            return;
+        final ChunkData data = cache.chunks.remove(c);
+        cache.bodies.dropChunk(c.xPosition, c.zPosition);
+        cache.priority.remove(c);
+        cache.distant.remove(c);
+        FluidManager.delegator.nearChunkSet.remove(c);
+        FluidManager.delegator.farChunkSet.remove(c);
+        if (data != null)
+        {
+            TransferInbox.drain(data);
+            data.invalidate();
+        }
+    }
+
+    /**
+     * Forgets every chunk of an unloading world.
+     */
+    public static void unloadWorldData(final World w)
+    {
+        final ChunkCache cache = worldCache.remove(w);
+        if (cache == null)
+            return;
+        for (final ChunkData data : cache.chunks.values())
+        {
+            FluidManager.delegator.nearChunkSet.remove(data.c);
+            FluidManager.delegator.farChunkSet.remove(data.c);
+            data.invalidate();
+        }
+        cache.chunks.clear();
+        cache.priority.clear();
+        cache.distant.clear();
+    }
+
     /**
      * Returns chunk data object. Assumes chunk is loaded!!!
      * 
@@ -616,7 +987,7 @@ public class FluidData
             cache = new ChunkCache();
             data = new ChunkData(w, c);
             cache.chunks.put(c, data);
-            worldCache.put(w, new ChunkCache());
+            worldCache.put(w, cache);
         } else
         {
             data = cache.chunks.get(c);
@@ -733,6 +1104,45 @@ public class FluidData
             return Blocks.flowing_lava;
     }
 
+    /**
+     * Adds delta (which may be negative) to the level of a cell, atomically,
+     * so two workers adding to the same border cell can not lose fluid. The
+     * block is updated to match, as with setLevelWorld.
+     * 
+     * @return The part of delta that did not fit, or all of it if the cell
+     *         holds something else
+     */
+    public static int addLevelWorld(final ChunkData data, final BlockFiniteFluid f, final int x, final int y, final int z, final int delta)
+    {
+        final int cx = x & 0xF, cz = z & 0xF;
+        final Block b0 = data.c.getBlock(cx, y, cz);
+        final boolean same = Util.isSameFluid(f, b0);
+        if (!same && !b0.isAir(data.w, x, y, z))
+            return delta;
+
+        int a, l0, l1;
+        do
+        {
+            a = data.getLevel(cx, y, cz);
+            // The array may not have been filled in from the block yet
+            l0 = a == 0 && same ? getLevel(data, f, cx, y, cz) : a;
+            l1 = Math.max(0, Math.min(RealisticFluids.MAX_FLUID, l0 + delta));
+        } while (!data.compareAndSetLevel(cx, y, cz, a, l1));
+        if (l1 == l0)
+            return delta;
+
+        if (RealisticFluids.BODY_INDEX)
+            FluidBodyIndex.levelChanged(data, l1 == 0 ? b0 : f, x, y, z, l0, l1);
+        data.markUpdate(cx, y, cz);
+        if (isFrontierChange(l0, l1))
+            markNeighbors(data, x, y, z);
+        if (l1 == 0)
+            RealisticFluids.setBlock(data.w, x, y, z, Blocks.air, 0, 2);
+        else
+            writeFluidBlock(data, convertFlowingStill(f, l1), b0, cx, cz, x, y, z, l0, l1);
+        return delta - (l1 - l0);
+    }
+
     public static int setLevelWorld(final ChunkData data, final BlockFiniteFluid f0, final int x, final int y, final int z, final int l0,
             final boolean updateNeighbors)
     {
@@ -752,6 +1162,8 @@ public class FluidData
         {
             // System.out.println("Set a block to air!");
             Block old= data.w.getBlock(x, y, z);
+            if (RealisticFluids.BODY_INDEX)
+                FluidBodyIndex.levelChanged(data, old, x, y, z, data.getLevel(cx, y, cz), 0);
             data.setLevel(cx, y, cz, 0);
             if (old instanceof BlockFiniteFluid || Blocks.air == f1)
                 RealisticFluids.setBlock(data.w, x, y, z, Blocks.air, 0, 2);
@@ -782,6 +1194,8 @@ public class FluidData
             // System.out.println("Spam blocks are a spamming...!");
             if (l0 <= 4 || l1 <= 4)
             {
+                if (RealisticFluids.BODY_INDEX)
+                    FluidBodyIndex.levelChanged(data, b0, x, y, z, l0, 0);
                 data.setLevel(cx, y, cz, 0);
                 RealisticFluids.setBlock(data.w, x, y, z, Blocks.air, 0, updateNeighbors ? 3 : 2);
             }
@@ -789,13 +1203,24 @@ public class FluidData
             return l1; // MAXXOR HAXXOR!
         }
 
-        final int m1 = Util.getMetaFromLevel(l1);
         data.markUpdate(cx, y, cz);
-        if (updateNeighbors)
+        if (updateNeighbors && isFrontierChange(l0, l1))
             markNeighbors(data, x, y, z);
 
         data.setLevel(cx, y, cz, l1);
+        if (RealisticFluids.BODY_INDEX)
+            FluidBodyIndex.levelChanged(data, f1, x, y, z, l0, l1);
+        return writeFluidBlock(data, f1, b0, cx, cz, x, y, z, l0, l1);
+    }
 
+    /**
+     * The block half of setLevel: shows level l1 (stored already, was l0) as
+     * block f1 over b0.
+     */
+    static int writeFluidBlock(final ChunkData data, final Block f1, final Block b0, final int cx, final int cz, final int x, final int y,
+            final int z, final int l0, final int l1)
+    {
+        final int m1 = Util.getMetaFromLevel(l1);
         if (Util.isSameFluid(f1, b0))
         {
             // Both blocks are realistic, and same materials
@@ -817,7 +1242,9 @@ public class FluidData
                     return l1;
                 } else {
                     // Both realistic, same fluid, different meta, same block.
-                    RealisticFluids.setBlock(data.w, x, y, z, null, m1, 3, true);
+                    // We already know exactly what is there, so skip the protection checks.
+                    RealisticFluids.setMetadataTrusted(data, data.getSectionView(y >> 4),
+                            cx + (cz << 4) + ((y & 0xF) << 8), x, y, z, m1, 3);
                     return l1;
                 }
             } else {
@@ -0,0 +1,80 @@
+package com.mcfht.realisticfluids;
+
+import net.minecraft.block.Block;
+import net.minecraft.init.Blocks;
+import net.minecraft.world.World;
+
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
+
+/**
+ * Explicit displacement API. Falling blocks and pistons used to be detected by
+ * looking at the stack trace in BlockFiniteFluid.breakBlock, which costs a
+ * stack capture on every single fluid replacement.
+ *
+ * <p>
+ * Now the world writes in EntityFallingBlock and BlockPistonBase are
+ * redirected here by ASM (see PatchDisplacement). When such a write replaces
+ * a finite fluid, the position is remembered for the duration of the write,
+ * and breakBlock only has to compare it. Ordinary block replacements pay
+ * nothing.
+ *
+ * @author FHT
+ */
+public class FluidDisplacement
+{
+    /** The write in progress on this thread, if it displaces fluid */
+    static class Pending
+    {
+        World   w;
+        int     x;
+        int     y;
+        int     z;
+    }
+
+    private static final ThreadLocal<Pending> pending = new ThreadLocal<Pending>()
+    {
+        @Override
+        protected Pending initialValue()
+        {
+            return new Pending();
+        }
+    };
+
+    /** ASM hook, replaces World.setBlock(x, y, z, block, meta, flag) */
+    public static boolean setBlock(final World w, final int x, final int y, final int z, final Block b, final int m, final int flag)
+    {
+        if (b instanceof BlockFiniteFluid || !(w.getBlock(x, y, z) instanceof BlockFiniteFluid))
+            return w.setBlock(x, y, z, b, m, flag);
+        final Pending p = pending.get();
+        p.w = w;
+        p.x = x;
+        p.y = y;
+        p.z = z;
+        try
+        {
+            return w.setBlock(x, y, z, b, m, flag);
+        } finally
+        {
+            p.w = null;
+        }
+    }
+
+    /** ASM hook, replaces World.setBlockToAir(x, y, z). Pistons break fluids this way */
+    public static boolean setBlockToAir(final World w, final int x, final int y, final int z)
+    {
+        return setBlock(w, x, y, z, Blocks.air, 0, 3);
+    }
+
+    /**
+     * Returns true, once, if the fluid at x, y, z is being replaced by a
+     * falling block or a piston.
+     */
+    public static boolean consume(final World w, final int x, final int y, final int z)
+    {
+        final Pending p = pending.get();
+        if (p.w != w || p.x != x || p.y != y || p.z != z)
+            return false;
+        p.w = null;
+        return true;
+    }
+}
@@ -46,6 +46,15 @@ public class FluidEqualizer
 		tasks.add(new EqualizeAlgorithms.EqualizeLayerSmooth(w, f, x, y, z, pars));
 	}
 
+	/** Levels the whole surface of the fluid body at x, y, z, see FluidBodyIndex */
+	public static void addBodyTask(final World w, final int x, final int y, final int z, final BlockFiniteFluid f)
+	{
+		// Prevent over-filling the queue
+		if (tasks.size() > 4 * RealisticFluids.EQUALIZE_GLOBAL)
+			return;
+		tasks.add(new EqualizeAlgorithms.EqualizeBody(w, f, x, y, z));
+	}
+
 	/** Perform this equalization task. <b>THREAD SAFE</b> */
 	private static int equalize()
 	{
@@ -130,6 +139,26 @@ public class FluidEqualizer
 			}
 		}
 
+		public static class EqualizeBody extends EqualizeTask
+		{
+			public EqualizeBody(final World w, final BlockFiniteFluid f, final int x, final int y, final int z, final int... pars)
+			{
+				super(w, f, x, y, z, pars);
+			}
+
+			@Override
+			public int perform()
+			{
+				final Chunk c = this.w.getChunkFromChunkCoords(this.x >> 4, this.z >> 4);
+				if (!c.isChunkLoaded)
+					return 1;
+				final FluidBodyIndex index = FluidBodyIndex.of(this.w);
+				if (index != null)
+					return index.levelSurface(FluidData.getChunkData(c), this.f, this.x, this.y, this.z);
+				return 1;
+			}
+		}
+
 		public static class EqualizeLayerSmooth extends EqualizeTask
 		{
 			public EqualizeLayerSmooth(final World w, final BlockFiniteFluid f, final int x, final int y, final int z, final int... pars)
@@ -179,7 +208,7 @@ public class FluidEqualizer
 			int sum = 0;
 			int counter = 0;
 			int totalDist = 0;
-			final int skew = data.w.rand.nextInt(8);
+			final int skew = FluidRandom.get().nextInt(8);
 
 			// boolean undermine = false;
 			// Start from a random direction and rotate around in 3 semi-random
@@ -239,8 +268,10 @@ public class FluidEqualizer
 				// Don't make water blocks with too little fluid in them
 				if (avgL < f0.getEffectiveViscosity(data.w, data.c.getBlock(x0 & 0xF, y0 - 1, z0 & 0xF), RealisticFluids.MAX_FLUID))
 					break;
-				// Set the first block
-				FluidData.setLevel(data, f0, x0 & 0xF, z0 & 0xF, x0, y0, z0, avgL, true);
+				// Set the first block. The line may cross into chunks other
+				// workers are updating, so every cell is moved by a delta
+				// (atomically) rather than overwritten
+				FluidData.addLevelWorld(data, f0, x0, y0, z0, avgL - FluidData.getLevel(data, f0, x0 & 0xF, y0, z0 & 0xF));
 				// Do the rest of the blocks
 				for (int i = 1; i < dist; i++)
 				{
@@ -248,15 +279,13 @@ public class FluidEqualizer
 					final int z1 = z0 + i * dz;
 					// Ensure we are in the right data object
 					data = FluidData.forceCurrentChunkData(data, x1, z1);
-					int l1 = FluidData.getLevel(data, f0, x1 & 0xF, y0, z1 & 0xF);
+					final int l1 = FluidData.getLevel(data, f0, x1 & 0xF, y0, z1 & 0xF);
 					if (l1 <= 0)
 					{
-						l1 = FluidData.getLevel(data, f0, x1 & 0xF, y0 - 1, z1 & 0xF);
-						FluidData.setLevel(data, f0, x1 & 0xF, z1 & 0xF, x1, y0, z1, l1 + avgL, true);
-						FluidData.setLevel(data, f0, x1 & 0xF, z1 & 0xF, x1, y0, z1, l1 + avgL - RealisticFluids.MAX_FLUID, true);
-
+						final int lB = FluidData.getLevel(data, f0, x1 & 0xF, y0 - 1, z1 & 0xF);
+						FluidData.addLevelWorld(data, f0, x1, y0, z1, Math.max(0, lB + avgL - RealisticFluids.MAX_FLUID));
 					} else
-						FluidData.setLevel(data, f0, x1 & 0xF, z1 & 0xF, x1, y0, z1, avgL, true);
+						FluidData.addLevelWorld(data, f0, x1, y0, z1, avgL - l1);
 				}
 				totalDist += dist;
 				counter++;
@@ -372,7 +401,7 @@ public class FluidEqualizer
 		{
 			int cur, min = 0, max = 0, sum = 0;
 			Block b1;
-			int m1;
+			final int[] read = new int[256];
 
 			int cx, cz;
 
@@ -384,7 +413,7 @@ public class FluidEqualizer
 			{
 				cx = i & 0xF;
 				cz = (i & 0xFF) >> 4;
-				cur = FluidData.getLevel(data, f0, cx, y0, cz);
+				cur = read[i & 0xFF] = FluidData.getLevel(data, f0, cx, y0, cz);
 				if (cur < min)
 					min = cur;
 				else if (cur > max)
@@ -400,16 +429,19 @@ public class FluidEqualizer
 			if (max - sum < threshold || sum - min < threshold)
 				return 8;
 
-			m1 = Util.getMetaFromLevel(sum);
+			// Every cell was just checked to be our fluid, so write the meta directly
+			final SectionView view = data.getSectionView(y0 >> 4);
 			for (int i = y0 * 256; i < (y0 * 256) + 256; i++)
 			{
 				cx = i & 0xF;
 				cz = (i & 255) >> 4;
 				// cur = data.fluidArray[y0 >> 4][i & 4095] = (short) sum;
-			    data.setFluid(cx, y0, cz, sum);
+				// Edge cells may take flow from a neighbour's worker meanwhile, keep it
+				data.addClamped(cx, y0, cz, sum - read[i & 0xFF]);
+				final int m1 = Util.getMetaFromLevel(data.getFluid(cx, y0, cz));
                 // RealisticFluids.setBlock(data.w, cx, y0, cx, null, m1, -2);
-                RealisticFluids.setBlock(data.w, cx + data.c.xPosition*16,
-                                            y0, cz + data.c.zPosition*16, null, m1, -2);
+                RealisticFluids.setMetadataTrusted(data, view, cx + (cz << 4) + ((y0 & 0xF) << 8),
+                                            cx + data.c.xPosition*16, y0, cz + data.c.zPosition*16, m1, -2);
 				// Now mark all update flags at this layer?
 				// data.updateFlags[y0 >> 4][i] = true;
 			}
@@ -0,0 +1,118 @@
+package com.mcfht.realisticfluids;
+
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+
+import com.mcfht.realisticfluids.FluidData.ChunkData;
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
+
+/**
+ * Waterfall fast path. Fluid over a drop used to fall one cell per sweep,
+ * writing a block, marking neighbours and sending packets at every step.
+ * Now the landing cell is found with one scan down the cell classes, and the
+ * whole volume is moved there at once.
+ *
+ * <p>
+ * So that a drop doesn't look like teleporting, each fall leaves a short
+ * lived "in transit" record, which draws a stream of splash particles down
+ * the shaft. There are at most {@link #MAX_TRANSIT} of them, the oldest is
+ * overwritten.
+ *
+ * @author FHT
+ */
+public class FluidFall
+{
+    public static final int     MAX_TRANSIT     = 64;
+    /** Ticks a stream stays visible */
+    public static final int     TRANSIT_TICKS   = 10;
+
+    static class Transit
+    {
+        World   w;
+        int     x;
+        int     yTop;
+        int     yBottom;
+        int     z;
+        int     ticksLeft;
+        boolean lava;
+    }
+
+    static final Transit[]      transit         = new Transit[MAX_TRANSIT];
+    static int                  next            = 0;
+
+    static
+    {
+        for (int i = 0; i < MAX_TRANSIT; i++)
+            transit[i] = new Transit();
+    }
+
+    /**
+     * Moves the fluid at x, y, z straight to where it lands, if there is more
+     * than one cell of air under it.
+     *
+     * @return True if the fluid fell, false if the normal flow should run
+     */
+    public static boolean tryFall(final ChunkData data, final BlockFiniteFluid f, final int x, final int y, final int z, final int l0)
+    {
+        final int cx = x & 0xF, cz = z & 0xF;
+        if (l0 <= 0 || y < 2 || data.getCellClass(cx, y - 1, cz) != FluidData.CLASS_AIR
+                || data.getCellClass(cx, y - 2, cz) != FluidData.CLASS_AIR)
+            return false;
+
+        int yl = y - 2;
+        while (yl > 0 && data.getCellClass(cx, yl - 1, cz) == FluidData.CLASS_AIR)
+            yl--;
+
+        // Land on top of the same fluid if it has room, else in the last air cell
+        int dest = yl, l1 = 0;
+        if (yl > 0 && data.getCellClass(cx, yl - 1, cz) == f.cellClass)
+        {
+            final int below = FluidData.getLevel(data, f, cx, yl - 1, cz);
+            if (below < RealisticFluids.MAX_FLUID)
+            {
+                dest = yl - 1;
+                l1 = below;
+            }
+        }
+        final int move = Math.min(l0, RealisticFluids.MAX_FLUID - l1);
+
+        FluidData.setLevelWorld(data, f, x, dest, z, l1 + move, true);
+        FluidData.setLevelWorld(data, f, x, y, z, l0 - move, true);
+        record(data.w, x, y, dest, z, f.cellClass == FluidData.CLASS_LAVA);
+        return true;
+    }
+
+    static synchronized void record(final World w, final int x, final int yTop, final int yBottom, final int z, final boolean lava)
+    {
+        final Transit t = transit[next];
+        next = (next + 1) % MAX_TRANSIT;
+        t.w = w;
+        t.x = x;
+        t.yTop = yTop;
+        t.yBottom = yBottom;
+        t.z = z;
+        t.ticksLeft = TRANSIT_TICKS;
+        t.lava = lava;
+    }
+
+    /** Draws the streams, once per server tick */
+    public static synchronized void tick()
+    {
+        for (final Transit t : transit)
+        {
+            if (t.ticksLeft <= 0)
+                continue;
+            if (--t.ticksLeft == 0 || !(t.w instanceof WorldServer))
+            {
+                t.w = null;
+                continue;
+            }
+            final WorldServer ws = (WorldServer) t.w;
+            // A few particles spread along the shaft, different each tick
+            final String particle = t.lava ? "dripLava" : "splash";
+            for (int y = t.yBottom + (t.ticksLeft % 4); y < t.yTop; y += 4)
+                ws.func_147487_a(particle, t.x + 0.5D, y + 0.5D, t.z + 0.5D, 2, 0.15D, 0.5D, 0.15D, 0.0D);
+            ws.func_147487_a(particle, t.x + 0.5D, t.yBottom + 1.0D, t.z + 0.5D, 4, 0.3D, 0.1D, 0.3D, 0.1D);
+        }
+    }
+}
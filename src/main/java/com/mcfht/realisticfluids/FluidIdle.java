@@ -0,0 +1,118 @@
+package com.mcfht.realisticfluids;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+
+import com.mcfht.realisticfluids.FluidManager.FluidWorker;
+import com.mcfht.realisticfluids.FluidManager.Task;
+
+/**
+ * Far chunk work in the idle time between server ticks.
+ *
+ * <p>
+ * A tick that is done in 15 ms leaves the server asleep for the other 35,
+ * while far chunks that did not fit in FAR_UPDATES wait for the next sweep.
+ * At the end of such a tick, some of those chunks are run through the
+ * pipeline engine: the server thread only snapshots their sections, and the
+ * pipeline pool computes them while the server sleeps. At the start of the
+ * next tick, whatever is done is checked and written back like any other
+ * pipeline commit. Sections that had not started yet are dropped (their
+ * cells are marked again), so nothing runs into the tick.
+ *
+ * @author FHT
+ */
+public class FluidIdle
+{
+    /** Length of a server tick */
+    static final long                               TICK_NS     = 50000000L;
+
+    /** Sections computed between ticks, waiting for the next tick */
+    static final ArrayList<FluidPipeline.Job>       inFlight    = new ArrayList<FluidPipeline.Job>();
+    /** True while doTask is handing out idle work, see FluidPipeline.submit */
+    static boolean                                  dispatching = false;
+    /** Closed when the next tick starts; idle jobs not started by then give up */
+    static volatile boolean                         open        = false;
+    /** When the current tick started */
+    static long                                     tickStart   = 0;
+
+    public static int                               chunks      = 0;
+    public static int                               committed   = 0;
+    public static int                               dropped     = 0;
+
+    /**
+     * Start of a server tick: stop idle work, and commit what got done.
+     */
+    public static void tickStart()
+    {
+        open = false;
+        tickStart = System.nanoTime();
+        for (final Iterator<FluidPipeline.Job> it = inFlight.iterator(); it.hasNext();)
+        {
+            final FluidPipeline.Job job = it.next();
+            // Still being computed, leave it for the next tick
+            if (!job.result.isDone())
+                continue;
+            it.remove();
+            int r;
+            try
+            {
+                r = job.result.get();
+            } catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                r = -1;
+            } catch (final ExecutionException e)
+            {
+                e.printStackTrace();
+                r = -1;
+            }
+            if (FluidPipeline.finish(job.kernel, r >= 0, false))
+                committed++;
+            else
+                dropped++;
+        }
+    }
+
+    /**
+     * End of a server tick: hand out far chunks left over from the sweep, as
+     * long as the tick has time to spare.
+     */
+    public static void tickEnd()
+    {
+        if (FluidManager.delegator.threadPool.size() <= FluidManager.delegator.FAR_THREAD)
+            return;
+        final FluidWorker far = FluidManager.delegator.threadPool.get(FluidManager.delegator.FAR_THREAD).worker;
+        final LinkedList<Task> tasks = far.tasks;
+        // Snapshots take server time too, only spend a slice of what is left
+        final long spare = tickStart + TICK_NS - RealisticFluids.IDLE_RESERVE * 1000000L - System.nanoTime();
+        if (spare <= 0 || tasks.isEmpty())
+            return;
+        final long deadline = System.nanoTime() + (spare >> 3);
+
+        open = true;
+        dispatching = true;
+        try
+        {
+            while (!tasks.isEmpty() && System.nanoTime() < deadline)
+            {
+                final Task task = tasks.poll();
+                if (task.isStale())
+                    continue;
+                FluidManager.delegator.farChunkSet.remove(task.data.c);
+                FluidManager.doTask(task.data, false, task.myStartTick, far.rand);
+                chunks++;
+            }
+        } finally
+        {
+            dispatching = false;
+        }
+    }
+
+    /** Sections handed out and not yet committed */
+    public static int pending()
+    {
+        return inFlight.size();
+    }
+}
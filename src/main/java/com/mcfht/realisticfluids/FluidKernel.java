@@ -0,0 +1,597 @@
+package com.mcfht.realisticfluids;
+
+import java.util.Random;
+
+import net.minecraft.block.Block;
+import net.minecraft.init.Blocks;
+
+import com.mcfht.realisticfluids.FluidData.ChunkData;
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
+
+/**
+ * Section-local flow engine.
+ *
+ * <p>
+ * Instead of running doUpdate cell by cell (which re-resolves chunks, runs
+ * sanity and may write blocks on every single access), the kernel copies a
+ * 16x16x16 section plus a one cell halo into flat arrays of levels and cell
+ * kinds, runs the same down-then-sideways rules over every flagged cell, and
+ * writes back only the cells that changed.
+ *
+ * <p>
+ * Anything the flat arrays can't describe (fences, breakable blocks, mod
+ * fluids, lava meeting water, fluid that is not due this sweep) is left to
+ * doUpdate, after the write back.
+ *
+ * @author FHT
+ */
+public class FluidKernel
+{
+    /** Halo width */
+    public static final int      H       = 18;
+    public static final int      H2      = H * H;
+    public static final int      SIZE    = H2 * H;
+
+    // Cell kinds
+    public static final byte     AIR     = 0;
+    public static final byte     WATER   = 1;
+    public static final byte     LAVA    = 2;
+    public static final byte     SOLID   = 3;
+    /** Needs the full block logic, see class doc */
+    public static final byte     SPECIAL = 4;
+
+    private static final ThreadLocal<FluidKernel> kernels = new ThreadLocal<FluidKernel>()
+    {
+        @Override
+        protected FluidKernel initialValue()
+        {
+            return new FluidKernel();
+        }
+    };
+
+    /** The kernel of the current thread */
+    public static FluidKernel get()
+    {
+        return kernels.get();
+    }
+
+    // Halo buffers, index hx + hz * 18 + hy * 324
+    final int[]         level       = new int[SIZE];
+    final byte[]        kind        = new byte[SIZE];
+    /** Copies taken at load time, for the write back */
+    final int[]         level0      = new int[SIZE];
+    final byte[]        kind0       = new byte[SIZE];
+
+    /** The 3x3 chunks around the section, null if not loaded */
+    final ChunkData[]   around      = new ChunkData[9];
+
+    /** Levels and kinds after the vertical step, read by the sideways step of computeJacobi */
+    final int[]         levelMid    = new int[SIZE];
+    final byte[]        kindMid     = new byte[SIZE];
+    /** Cells run by computeJacobi */
+    final int[]         cells       = new int[4096];
+    /** Kinds (1 << kind) that could pour into each empty cell, see computeJacobi */
+    final byte[]        claim       = new byte[SIZE];
+
+    /** Cells handed back to doUpdate */
+    final int[]         fallback    = new int[4096];
+    int                 fallbackCount;
+
+    int                 baseX, baseY, baseZ;
+
+    // Set by snapshot
+    ChunkData           data;
+    /** Epoch of data at snapshot */
+    int                 epoch;
+    int                 sy;
+    int                 interval;
+    boolean             waterDue, lavaDue, fastFall, nearSea, jacobi;
+
+    // Used by FluidPipeline, which computes off the server thread
+    /** Flags of the cells to run, and the copy kept in case the commit is refused */
+    final boolean[]     work        = new boolean[4096];
+    final boolean[]     work0       = new boolean[4096];
+    final FluidRandom   rand        = new FluidRandom();
+
+    /** Section cell index of halo index h, which must be inside the section */
+    int sectionIndex(final int h)
+    {
+        return ((h % H) - 1) + ((((h / H) % H) - 1) << 4) + (((h / H2) - 1) << 8);
+    }
+
+    /** Halo index of section cell idx (cx + (cz << 4) + (cy << 8)) */
+    public static int haloIndex(final int idx)
+    {
+        return ((idx & 0xF) + 1) + (((idx >> 4) & 0xF) + 1) * H + (((idx >> 8) & 0xF) + 1) * H2;
+    }
+
+    /** Kernel kind of each cell class, see FluidData.classify */
+    static final byte[] KIND_OF_CLASS = { AIR, WATER, LAVA, SPECIAL, SPECIAL, SOLID, SPECIAL, SPECIAL,
+            SPECIAL, SPECIAL, SPECIAL, SPECIAL, SPECIAL, SPECIAL, SPECIAL, SPECIAL };
+
+    /**
+     * Classifies a block for the kernel.
+     */
+    public static byte classify(final Block b)
+    {
+        return KIND_OF_CLASS[FluidData.classify(b)];
+    }
+
+    public static BlockFiniteFluid fluidFor(final byte k)
+    {
+        return (BlockFiniteFluid) (k == LAVA ? Blocks.flowing_lava : Blocks.flowing_water);
+    }
+
+    /**
+     * Runs all flagged cells of one section.
+     *
+     * @param data
+     * @param sy Section index
+     * @param work The working update flags of the section, cleared as we go
+     * @param r
+     * @param interval
+     * @return Number of cells processed
+     */
+    public int run(final ChunkData data, final int sy, final boolean[] work, final Random r, final int interval)
+    {
+        this.snapshot(data, sy, interval);
+        final int cost = this.compute(work, r);
+        this.writeBack(data);
+        this.runFallback(r);
+        return cost;
+    }
+
+    /**
+     * Copies the section and its halo, and everything compute needs to know
+     * about the world. Server thread only.
+     */
+    void snapshot(final ChunkData data, final int sy, final int interval)
+    {
+        this.load(data, sy);
+        this.data = data;
+        this.epoch = data.epoch;
+        this.sy = sy;
+        this.interval = interval;
+        this.fallbackCount = 0;
+        this.waterDue = fluidFor(WATER).isDue(data.w, interval);
+        this.lavaDue = fluidFor(LAVA).isDue(data.w, interval);
+        this.fastFall = RealisticFluids.FAST_FALL;
+        this.jacobi = RealisticFluids.JACOBI;
+        // Shores of the ocean reservoir are left to FluidReservoir.exchange
+        this.nearSea = RealisticFluids.OCEAN_RESERVOIR && this.baseY <= FluidManager.seaLevel(data.w) + 1;
+    }
+
+    /**
+     * Runs the flagged cells on the buffers. Only reads the world near the
+     * sea (nearSea), so otherwise it is safe off the server thread.
+     *
+     * @return Number of cells processed
+     */
+    int compute(final boolean[] work, final Random r)
+    {
+        if (this.jacobi)
+            return this.computeJacobi(work);
+        final BlockFiniteFluid water = fluidFor(WATER);
+        final BlockFiniteFluid lava = fluidFor(LAVA);
+        final boolean waterDue = this.waterDue, lavaDue = this.lavaDue;
+        final boolean fastFall = this.fastFall, nearSea = this.nearSea;
+        final ChunkData data = this.data;
+
+        int cost = 0;
+        for (int j = 0; j < 4096; j++)
+        {
+            if (!work[j])
+                continue;
+            work[j] = false;
+            cost++;
+
+            final int h = haloIndex(j);
+            final byte k = this.kind[h];
+            if (k != WATER && k != LAVA)
+                continue;
+            // Can't flow out of the world
+            if (this.baseY + (j >> 8) == 0)
+                continue;
+
+            if (!(k == WATER ? waterDue : lavaDue) || this.needsBlockLogic(h, k)
+                    // Long drops go through FluidFall
+                    || (fastFall && this.kind[h - H2] == AIR && h >= 2 * H2 && this.kind[h - 2 * H2] == AIR)
+                    || (nearSea && FluidReservoir.touches(data, this.baseX + (j & 0xF), this.baseY + (j >> 8), this.baseZ + ((j >> 4) & 0xF))))
+            {
+                this.fallback[this.fallbackCount++] = j;
+                continue;
+            }
+            this.flowCell(h, k, k == WATER ? water : lava, work, r);
+        }
+        return cost;
+    }
+
+    /**
+     * Order independent version of compute. Every cell reads the levels the
+     * sweep started with (level0), and its transfers are added up in level,
+     * so the result doesn't depend on which cell goes first, and there is no
+     * random skew. Same result on every run, and on any thread.
+     *
+     * <p>
+     * The vertical and sideways steps are two such passes. A cell below
+     * only gets fluid from the one cell above, so it can take all it has
+     * room for. Sideways, up to four cells can pour into one, so each only
+     * gives a fifth of the difference instead of half; that keeps every cell
+     * between empty and full without clamping. Thin cells (the ledge rule),
+     * cells next to an empty cell the other fluid could also pour into, and
+     * anything compute would hand to doUpdate still go to doUpdate.
+     *
+     * @return Number of cells processed
+     */
+    int computeJacobi(final boolean[] work)
+    {
+        final int[] lv = this.level, lv0 = this.level0, mid = this.levelMid;
+        final byte[] kd = this.kind, kd0 = this.kind0, kmid = this.kindMid;
+        final int max = RealisticFluids.MAX_FLUID;
+
+        int cost = 0, n = 0;
+        for (int j = 0; j < 4096; j++)
+        {
+            if (!work[j])
+                continue;
+            work[j] = false;
+            cost++;
+
+            final int h = haloIndex(j);
+            final byte k = kd0[h];
+            if (k != WATER && k != LAVA)
+                continue;
+            if (this.baseY + (j >> 8) == 0)
+                continue;
+            final int visc = fluidFor(k).viscosity;
+            if (!(k == WATER ? this.waterDue : this.lavaDue) || this.needsBlockLogic(h, k) || lv0[h] < visc << 1
+                    || (this.fastFall && kd0[h - H2] == AIR && h >= 2 * H2 && kd0[h - 2 * H2] == AIR)
+                    || (this.nearSea && FluidReservoir.touches(this.data, this.baseX + (j & 0xF), this.baseY + (j >> 8), this.baseZ + ((j >> 4) & 0xF))))
+            {
+                this.fallback[this.fallbackCount++] = j;
+                continue;
+            }
+            this.cells[n++] = h;
+        }
+
+        // Down
+        for (int i = 0; i < n; i++)
+        {
+            final int h = this.cells[i], hd = h - H2;
+            final byte k = kd0[h], k1 = kd0[hd];
+            if ((k1 == AIR || k1 == k) && lv0[hd] < max)
+            {
+                final int move = Math.min(lv0[h], max - lv0[hd]);
+                lv[h] -= move;
+                lv[hd] += move;
+                kd[hd] = k;
+            }
+        }
+        System.arraycopy(lv, 0, mid, 0, SIZE);
+        System.arraycopy(kd, 0, kmid, 0, SIZE);
+
+        // Water and lava on either side of the same empty cell would both pour
+        // into it, and whichever wrote last would decide the block. Find those
+        // cells first, so the answer doesn't depend on the order either.
+        final byte[] claim = this.claim;
+        for (int i = 0; i < n; i++)
+        {
+            final int h = this.cells[i];
+            for (int d = 0; d < 4; d++)
+            {
+                final int hn = h + Util.cardinalX(d) + Util.cardinalZ(d) * H;
+                if (kmid[hn] == AIR)
+                    claim[hn] |= 1 << kd0[h];
+            }
+        }
+
+        // Sideways
+        for (int i = 0; i < n; i++)
+        {
+            final int h = this.cells[i], hd = h - H2;
+            final byte k = kd0[h];
+            final int l0 = mid[h];
+            if (l0 <= 0)
+                continue;
+            final BlockFiniteFluid f = fluidFor(k);
+            final int efVisc = (mid[hd] > 0 && kmid[hd] == k) ? Math.max(1, f.viscosity >> 15) : f.viscosity;
+            boolean contested = false;
+            for (int d = 0; d < 4; d++)
+            {
+                final int hn = h + Util.cardinalX(d) + Util.cardinalZ(d) * H;
+                final byte kn = kmid[hn];
+                if (kn != AIR && kn != k)
+                    continue;
+                if (kn == AIR && claim[hn] == ((1 << WATER) | (1 << LAVA)))
+                {
+                    contested = true;
+                    continue;
+                }
+                final int ln = mid[hn];
+                if (l0 <= ln)
+                    continue;
+                final int flow = (l0 - ln) / 5;
+                if (flow >= BlockFiniteFluid.FLOW_THRESHOLD && l0 - flow >= efVisc && ln + flow >= efVisc)
+                {
+                    lv[h] -= flow;
+                    lv[hn] += flow;
+                    kd[hn] = k;
+                }
+            }
+            // doUpdate meets the other fluid properly
+            if (contested)
+                this.fallback[this.fallbackCount++] = this.sectionIndex(h);
+        }
+        for (int i = 0; i < n; i++)
+        {
+            final int h = this.cells[i];
+            for (int d = 0; d < 4; d++)
+                claim[h + Util.cardinalX(d) + Util.cardinalZ(d) * H] = 0;
+        }
+
+        // Only the cells that ran can have lost fluid
+        for (int i = 0; i < n; i++)
+            if (lv[this.cells[i]] <= 0)
+            {
+                lv[this.cells[i]] = 0;
+                kd[this.cells[i]] = AIR;
+            }
+        return cost;
+    }
+
+    /** Hands the cells the buffers can't describe to doUpdate */
+    void runFallback(final Random r)
+    {
+        final ChunkData data = this.data;
+        for (int i = 0; i < this.fallbackCount; i++)
+        {
+            final int j = this.fallback[i];
+            final int x = this.baseX + (j & 0xF);
+            final int y = this.baseY + ((j >> 8) & 0xF);
+            final int z = this.baseZ + ((j >> 4) & 0xF);
+            final Block b = data.c.getBlock(x & 0xF, y, z & 0xF);
+            if (b instanceof BlockFiniteFluid)
+            {
+                if (this.nearSea && FluidReservoir.exchange(data, (BlockFiniteFluid) b, x, y, z))
+                    continue;
+                ((BlockFiniteFluid) b).doUpdate(data, x, y, z, r, this.interval);
+            }
+        }
+    }
+
+    /**
+     * Whether every cell compute changed still holds what the snapshot saw.
+     * If so, the write back moves exactly the fluid compute meant to move.
+     */
+    boolean isUnchanged()
+    {
+        for (int h = 0; h < SIZE; h++)
+        {
+            if (this.level[h] == this.level0[h] && this.kind[h] == this.kind0[h])
+                continue;
+            final int hx = h % H, hz = (h / H) % H, hy = h / H2;
+            final ChunkData d = this.chunkFor(hx, hz);
+            final int wx = this.baseX + hx - 1, wy = this.baseY + hy - 1, wz = this.baseZ + hz - 1;
+            if (!d.c.isChunkLoaded)
+                return false;
+            final byte k = classify(d.c.getBlock(wx & 0xF, wy, wz & 0xF));
+            if (k != this.kind0[h])
+                return false;
+            if ((k == WATER || k == LAVA) && FluidData.getLevel(d, fluidFor(k), wx & 0xF, wy, wz & 0xF) != this.level0[h])
+                return false;
+        }
+        return true;
+    }
+
+    /** Flags the cells of a refused commit again, for the next sweep */
+    void remark()
+    {
+        for (int j = 0; j < 4096; j++)
+            if (this.work0[j])
+                this.data.markUpdate(j & 0xF, (this.sy << 4) + (j >> 8), (j >> 4) & 0xF);
+    }
+
+    /** Whether any neighbour needs the full block logic */
+    private boolean needsBlockLogic(final int h, final byte k)
+    {
+        final byte other = k == WATER ? LAVA : WATER;
+        final byte[] kd = this.kind;
+        return isSpecial(kd[h - H2], other) || isSpecial(kd[h + 1], other) || isSpecial(kd[h - 1], other)
+                || isSpecial(kd[h + H], other) || isSpecial(kd[h - H], other);
+    }
+
+    private static boolean isSpecial(final byte k, final byte other)
+    {
+        return k == SPECIAL || k == other;
+    }
+
+    /**
+     * The rules of BlockFiniteFluid.doUpdate, on the halo buffers.
+     */
+    private void flowCell(final int h, final byte k, final BlockFiniteFluid f, final boolean[] work, final Random r)
+    {
+        final int[] lv = this.level;
+        final byte[] kd = this.kind;
+        final int _l0 = lv[h];
+        int l0 = _l0;
+
+        // First, try to flow downwards
+        final int hd = h - H2;
+        final byte k1 = kd[hd];
+        final int l1 = lv[hd];
+        if ((k1 == AIR || k1 == k) && l1 < RealisticFluids.MAX_FLUID)
+        {
+            // See if we can take water from higher up to save updates
+            int hu = h;
+            while (hu + H2 < SIZE && kd[hu + H2] == k && lv[hu + H2] >= RealisticFluids.MAX_FLUID)
+                hu += H2;
+
+            if (hu != h)
+            {
+                // Pull the water down
+                lv[hu] = l1;
+                kd[hu] = l1 > 0 ? k : AIR;
+                this.touch(hu, work);
+                lv[hd] = RealisticFluids.MAX_FLUID;
+            } else
+            {
+                // Flow down
+                final int total = l0 + l1;
+                lv[hd] = Math.min(RealisticFluids.MAX_FLUID, total);
+                l0 = total - lv[hd];
+            }
+            // Above hd is this cell, nothing more to do this pass
+            kd[hd] = k;
+        }
+
+        try
+        {
+            if (l0 <= 0)
+                return;
+
+            final int efVisc = (l1 > 0 && k1 == k) ? Math.max(1, f.viscosity >> 15) : f.viscosity;
+            final boolean flag = l0 < efVisc << 1;
+            final int skew = r.nextInt(4);
+
+            // Try to flow horizontally
+            for (int i = 0; i < 4; i++)
+            {
+                final int dx = Util.cardinalX(i + skew);
+                final int dz = Util.cardinalZ(i + skew);
+                final int hn = h + dx + dz * H;
+                final byte kn = kd[hn];
+                if (kn != AIR && kn != k)
+                    continue;
+                final int ln = lv[hn];
+
+                if (!flag)
+                {
+                    if (l0 > ln)
+                    {
+                        final int flow = (l0 - ln) / 2;
+                        if (flow >= BlockFiniteFluid.FLOW_THRESHOLD && l0 - flow >= efVisc && ln + flow >= efVisc)
+                        {
+                            l0 -= flow;
+                            lv[hn] = ln + flow;
+                            kd[hn] = k;
+                            this.touch(hn, work);
+                            if (l0 < (efVisc >> 2))
+                                return;
+                        }
+                    }
+                } else if (lv[hd] == 0)
+                {
+                    // Prevent water from getting stuck on ledges. The air test
+                    // looks under x1, z0, exactly like doUpdate does.
+                    if ((kn == AIR || (ln > 0 && ln + l0 < RealisticFluids.MAX_FLUID))
+                            && (kd[hd + dx] == AIR || kd[hn - H2] == k))
+                    {
+                        lv[hn] = ln + l0;
+                        kd[hn] = k;
+                        this.touch(hn, work);
+                        l0 = 0;
+                        return;
+                    }
+                }
+            }
+        } finally
+        {
+            if (l0 != _l0)
+            {
+                lv[h] = Math.max(0, l0);
+                kd[h] = lv[h] > 0 ? k : AIR;
+                this.touch(h, work);
+            }
+        }
+    }
+
+    /**
+     * A cell changed. Like markNeighbors in setLevel, only the cell above
+     * gets processed in this same pass, if it is in the section. The changed
+     * cell and its other neighbours are flagged for the next sweep by the
+     * write back.
+     */
+    private void touch(final int h, final boolean[] work)
+    {
+        final int hu = h + H2;
+        final int hx = hu % H, hz = (hu / H) % H, hy = hu / H2;
+        if (hx < 1 || hx > 16 || hz < 1 || hz > 16 || hy < 1 || hy > 16)
+            return;
+        work[(hx - 1) + ((hz - 1) << 4) + ((hy - 1) << 8)] = true;
+    }
+
+    /**
+     * Whether a section has too few flagged cells to be worth loading: the
+     * halo costs a block and level read for each of its 5832 cells, which
+     * is more than doUpdate on a handful of cells.
+     */
+    public static boolean isSparse(final boolean[] work)
+    {
+        int n = 0;
+        for (int j = 0; j < 4096; j++)
+            if (work[j] && ++n >= RealisticFluids.KERNEL_MIN_CELLS)
+                return false;
+        return true;
+    }
+
+    /** Fills the halo buffers */
+    private void load(final ChunkData data, final int sy)
+    {
+        this.baseX = data.c.xPosition << 4;
+        this.baseY = sy << 4;
+        this.baseZ = data.c.zPosition << 4;
+
+        for (int i = 0; i < 9; i++)
+            this.around[i] = FluidData.testCurrentChunkData(data, this.baseX + ((i % 3) - 1) * 16, this.baseZ + ((i / 3) - 1) * 16);
+
+        for (int hy = 0; hy < H; hy++)
+        {
+            final int wy = this.baseY + hy - 1;
+            for (int hz = 0; hz < H; hz++)
+            {
+                final int wz = this.baseZ + hz - 1;
+                for (int hx = 0; hx < H; hx++)
+                {
+                    final int wx = this.baseX + hx - 1;
+                    final int h = hx + hz * H + hy * H2;
+                    final ChunkData d = this.chunkFor(hx, hz);
+                    if (wy < 0 || wy > 255 || d == null)
+                    {
+                        this.kind[h] = SOLID;
+                        this.level[h] = 0;
+                    } else
+                    {
+                        // The section's own class map, straight from the blocks for the halo
+                        final byte k = (d == data && (wy >> 4) == sy) ? KIND_OF_CLASS[data.getCellClass(wx & 0xF, wy, wz & 0xF)]
+                                : classify(d.c.getBlock(wx & 0xF, wy, wz & 0xF));
+                        this.kind[h] = k;
+                        this.level[h] = (k == WATER || k == LAVA) ? FluidData.getLevel(d, fluidFor(k), wx & 0xF, wy, wz & 0xF) : 0;
+                    }
+                    this.kind0[h] = this.kind[h];
+                    this.level0[h] = this.level[h];
+                }
+            }
+        }
+    }
+
+    private ChunkData chunkFor(final int hx, final int hz)
+    {
+        final int ix = hx == 0 ? 0 : (hx == H - 1 ? 2 : 1);
+        final int iz = hz == 0 ? 0 : (hz == H - 1 ? 2 : 1);
+        return this.around[ix + iz * 3];
+    }
+
+    /** Writes back every changed cell, halo included */
+    void writeBack(final ChunkData data)
+    {
+        for (int h = 0; h < SIZE; h++)
+        {
+            if (this.level[h] == this.level0[h] && this.kind[h] == this.kind0[h])
+                continue;
+            final int hx = h % H, hz = (h / H) % H, hy = h / H2;
+            final ChunkData d = this.chunkFor(hx, hz);
+            final byte k = this.kind[h] == AIR ? this.kind0[h] : this.kind[h];
+            FluidData.setLevelWorld(d, fluidFor(k), this.baseX + hx - 1, this.baseY + hy - 1, this.baseZ + hz - 1, this.level[h], true);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.mcfht.realisticfluids;
+
+import net.minecraft.block.Block;
+import net.minecraft.init.Blocks;
+
+import com.mcfht.realisticfluids.FluidData.ChunkData;
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
+
+/**
+ * Coarse simulation for chunks far from every player.
+ *
+ * <p>
+ * Past LOD_RANGE, nobody sees single cells, so a chunk is collapsed into one
+ * volume per column: the top run of fluid in each column, from its base up.
+ * Columns then trade fluid with their neighbours by head (base height plus
+ * volume), which costs a few hundred operations per chunk instead of a
+ * doUpdate per cell. The blocks are not touched while collapsed.
+ *
+ * <p>
+ * When a player comes back in range, or anything marks a cell of the chunk
+ * (blocks, buckets, flow from next door), the volumes are poured back into
+ * the columns from the base up. Whatever changed in a column since the
+ * collapse is added to its volume first, so fluid is neither made nor lost.
+ *
+ * @author FHT
+ */
+public class FluidLOD
+{
+    /** Column not simulated (dry, or both fluids in it) */
+    static final byte   NONE    = -1;
+
+    final byte[]        cls     = new byte[256];
+    final short[]       base    = new short[256];
+    final short[]       top     = new short[256];
+    /** Current volume of each column */
+    final int[]         volume  = new int[256];
+    /** Volume of the run when the column was collapsed */
+    final int[]         volume0 = new int[256];
+    /** Most the column can hold: its run and the air above it */
+    final int[]         cap     = new int[256];
+
+    /**
+     * Collapses a chunk into columns.
+     *
+     * @return False if there was no fluid to collapse
+     */
+    public static boolean collapse(final ChunkData data)
+    {
+        final FluidLOD lod = new FluidLOD();
+        boolean any = false;
+        for (int col = 0; col < 256; col++)
+        {
+            final int cx = col & 0xF, cz = col >> 4;
+            lod.cls[col] = NONE;
+
+            int y = data.c.getTopFilledSegment() + 15;
+            int k = FluidData.CLASS_AIR;
+            while (y >= 0 && (k = FluidData.classify(data.c.getBlock(cx, y, cz))) != FluidData.CLASS_WATER && k != FluidData.CLASS_LAVA)
+                y--;
+            if (y < 0)
+                continue;
+
+            final BlockFiniteFluid f = fluidOf(k);
+            final int t = y;
+            int v = 0;
+            while (y >= 0 && FluidData.classify(data.c.getBlock(cx, y, cz)) == k)
+                v += FluidData.getLevel(data, f, cx, y--, cz);
+
+            int room = t + 1;
+            while (room < 256 && FluidData.classify(data.c.getBlock(cx, room, cz)) == FluidData.CLASS_AIR)
+                room++;
+
+            lod.cls[col] = (byte) k;
+            lod.top[col] = (short) t;
+            lod.cap[col] = (room - y - 1) * RealisticFluids.MAX_FLUID;
+            lod.base[col] = (short) (y + 1);
+            lod.volume[col] = v;
+            lod.volume0[col] = v;
+            any = true;
+        }
+        if (!any)
+            return false;
+        data.lod = lod;
+        data.lodWake = false;
+        return true;
+    }
+
+    /**
+     * One exchange step between neighbouring columns of the same fluid whose
+     * runs overlap.
+     *
+     * @return The cost, for the sweep budget
+     */
+    public int step(final ChunkData data)
+    {
+        final int max = RealisticFluids.MAX_FLUID;
+        for (int col = 0; col < 256; col++)
+        {
+            final byte k = this.cls[col];
+            if (k == NONE)
+                continue;
+            final int cx = col & 0xF, cz = col >> 4;
+            for (int d = 0; d < 4; d++)
+            {
+                final int nx = cx + Util.cardinalX(d), nz = cz + Util.cardinalZ(d);
+                if (nx < 0 || nx > 15 || nz < 0 || nz > 15)
+                    continue;
+                final int n = nx + (nz << 4);
+                if (this.cls[n] != k || this.top[n] < this.base[col] || this.top[col] < this.base[n])
+                    continue;
+                final long head = (long) this.base[col] * max + this.volume[col];
+                final long headN = (long) this.base[n] * max + this.volume[n];
+                if (head - headN < BlockFiniteFluid.FLOW_THRESHOLD)
+                    continue;
+                // Never more than fits, or expand would have nowhere to put it
+                final int t = (int) Math.min(Math.min((head - headN) / 4, this.volume[col]), this.cap[n] - this.volume[n]);
+                if (t <= 0)
+                    continue;
+                this.volume[col] -= t;
+                this.volume[n] += t;
+            }
+        }
+        return 16;
+    }
+
+    /**
+     * Pours the columns back into cells and drops the LOD state. If blocks
+     * placed since the collapse leave a column short of room, the rest goes to
+     * the other columns of the same fluid.
+     */
+    public static void expand(final ChunkData data)
+    {
+        final FluidLOD lod = data.lod;
+        if (lod == null)
+            return;
+        // Writes below mark cells of this chunk, don't wake it again
+        data.lod = null;
+        data.lodWake = false;
+
+        // Fluid that did not fit, by class
+        final int[] spill = new int[16];
+        for (int col = 0; col < 256; col++)
+        {
+            final byte k = lod.cls[col];
+            if (k != NONE)
+                spill[k] = lod.pour(data, col, lod.volume[col] - lod.volume0[col] + spill[k]);
+        }
+        for (int col = 0; col < 256; col++)
+        {
+            final byte k = lod.cls[col];
+            if (k != NONE && spill[k] > 0)
+                spill[k] = lod.pour(data, col, spill[k]);
+        }
+    }
+
+    /**
+     * Refills a column from its base up with what is in it now plus extra.
+     *
+     * @return What did not fit
+     */
+    int pour(final ChunkData data, final int col, final int extra)
+    {
+        final byte k = this.cls[col];
+        final int cx = col & 0xF, cz = col >> 4;
+        final int x0 = data.c.xPosition << 4, z0 = data.c.zPosition << 4;
+        final BlockFiniteFluid f = fluidOf(k);
+
+        // Count what is in the column now, including what was done to it since it was collapsed
+        int now = 0, last = this.top[col];
+        for (int y = this.base[col]; y < 256; y++)
+        {
+            final int c = FluidData.classify(data.c.getBlock(cx, y, cz));
+            if (c == k)
+            {
+                now += FluidData.getLevel(data, f, cx, y, cz);
+                last = y;
+            } else if (c != FluidData.CLASS_AIR && y > this.top[col])
+                break;
+        }
+        int v = now + extra;
+
+        // Fill from the base up, and empty whatever is left above
+        for (int y = this.base[col]; y < 256 && (v > 0 || y <= last); y++)
+        {
+            final Block b = data.c.getBlock(cx, y, cz);
+            final int c = FluidData.classify(b);
+            if (c != k && c != FluidData.CLASS_AIR)
+            {
+                if (y > this.top[col])
+                    break;
+                continue;
+            }
+            final int l = Math.max(0, Math.min(v, RealisticFluids.MAX_FLUID));
+            v -= l;
+            final int l0 = FluidData.getLevel(data, f, cx, y, cz);
+            if (l == l0)
+                continue;
+            if (l > 0 && c == k && Util.getMetaFromLevel(l) == Util.getMetaFromLevel(l0))
+                data.setLevel(cx, y, cz, l); // Looks the same, just move the fluid
+            else
+                FluidData.setLevelWorld(data, f, x0 + cx, y, z0 + cz, l, true);
+        }
+        return Math.max(0, v);
+    }
+
+    static BlockFiniteFluid fluidOf(final int k)
+    {
+        return (BlockFiniteFluid) (k == FluidData.CLASS_LAVA ? Blocks.flowing_lava : Blocks.flowing_water);
+    }
+
+    /** Number of simulated columns */
+    public int columns()
+    {
+        int n = 0;
+        for (int col = 0; col < 256; col++)
+            if (this.cls[col] != NONE)
+                n++;
+        return n;
+    }
+}
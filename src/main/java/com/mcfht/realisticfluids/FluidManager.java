@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.minecraft.block.Block;
@@ -31,6 +32,9 @@ public class FluidManager
 {
     public static Delegator			delegator	= new Delegator();
 
+    /** Most passes a slow chunk makes per sweep to catch up */
+    public static final int         MAX_CATCH_UP    = 4;
+
     public static WorkerPriority	PWorker		= new WorkerPriority();
     public static Thread			PRIORITY	= new Thread(PWorker);
 
@@ -75,6 +79,9 @@ public class FluidManager
     public static class Delegator
     {
         public AtomicInteger			sweepCost	= new AtomicInteger(0);
+        /** Cells taken from water and lava sets, and lava sections left waiting, this sweep and the last */
+        public int                      waterCells, lavaCells, lavaWaiting;
+        public int                      lastWaterCells, lastLavaCells, lastLavaWaiting;
         public int						myStartTick;
         public World[]					worlds;
 
@@ -174,6 +181,10 @@ public class FluidManager
             }
 
             this.sweepCost.set(0);
+            this.lastWaterCells = this.waterCells;
+            this.lastLavaCells = this.lavaCells;
+            this.lastLavaWaiting = this.lavaWaiting;
+            this.waterCells = this.lavaCells = this.lavaWaiting = 0;
             // System.out.print("Worker task size count:");
 
             // This is NOT threading!
@@ -193,6 +204,10 @@ public class FluidManager
 //                System.out.printf("%d ", wt.worker.tasks.size());
                 wt.thread.run();
             }
+            // Write back what the pipeline computed meanwhile
+            FluidPipeline.commit();
+            // And whatever was sent to chunks that didn't run
+            TransferInbox.drainAll();
 //            System.out.printf("\n");
             
             for (final WorkerThread wt : this.threadPool)
@@ -228,12 +243,21 @@ public class FluidManager
         public boolean		isHighPriority;
         public int			myStartTick;
         public ChunkData	data;
+        /** Epoch of data when queued */
+        public int			epoch;
 
         public Task(final ChunkData data, final boolean highPriority, final int startTick)
         {
             this.data = data;
             this.isHighPriority = highPriority;
             this.myStartTick = startTick;
+            this.epoch = data.epoch;
+        }
+
+        /** Whether the chunk unloaded since this task was queued */
+        public boolean isStale()
+        {
+            return this.data.epoch != this.epoch;
         }
     }
 
@@ -243,6 +267,8 @@ public class FluidManager
         public boolean						forceQuit	= false;
         public int							cost;
         public LinkedList<Task>             tasks		= new LinkedList<Task>();
+        /** This worker's own generator, reseeded for each chunk */
+        public final FluidRandom            rand        = new FluidRandom();
 
         @Override
         public void run()
@@ -274,6 +300,8 @@ public class FluidManager
                 }
                 
                 this.tasks.remove(task);
+                if (task.isStale())
+                    continue;
 
                 // System.out.println("Doing task!");
                 // this.cost = 32 + doTask(task.data, task.isHighPriority,
@@ -283,7 +311,7 @@ public class FluidManager
                 delegator.nearChunkSet.remove(task.data.c);
                 delegator.farChunkSet.remove(task.data.c);
                 
-                int thisCost = doTask(task.data, task.isHighPriority, task.myStartTick);
+                int thisCost = doTask(task.data, task.isHighPriority, task.myStartTick, this.rand);
                 int adjCost = thisCost;
 
 //                if (task.isHighPriority)
@@ -412,10 +440,32 @@ public class FluidManager
      */
     public static int doTask(final ChunkData data, final boolean isHighPriority, final int startTime)
     {
+        return doTask(data, isHighPriority, startTime, FluidRandom.get());
+    }
+
+    /**
+     * As above, drawing from the given worker generator, which is reseeded
+     * for this chunk and tick first.
+     */
+    public static int doTask(final ChunkData data, final boolean isHighPriority, final int startTime, final FluidRandom rand)
+    {
+        rand.reseed(FluidRandom.seedFor(data, startTime));
+        // Take in what the neighbours sent first
+        TransferInbox.drain(data);
         final int interval = (startTime % RealisticFluids.GLOBAL_RATE);
+        // Idle time work always goes through the pipeline, see FluidIdle
+        final int engine = FluidIdle.dispatching ? RealisticFluids.ENGINE_PIPELINE : RealisticFluids.FLOW_ENGINE;
         int cost = 0;
         int x, y, z;
 
+        // Collapsed far away, only the columns move
+        if (data.lod != null)
+            return data.lod.step(data);
+
+        // With split sets, lava cells are only looked at in lava's own sweeps
+        final boolean lavaDue = ((BlockFiniteFluid) Blocks.flowing_lava).isDue(data.w, interval);
+        int lavaTaken = 0;
+
         // Iterate over each
         for (int i = 0; i < 16; i++)
         {
@@ -428,57 +478,113 @@ public class FluidManager
             // do evaporation, seeping, refilling in rain, and so on.
             if (RealisticFluids.FlowEnabled)
             {
-                doRandomMinichunkTicks(data, i, 3, isHighPriority);
+                doRandomMinichunkTicks(data, i, 3, isHighPriority, rand);
             }
             // No updates, exit
-            if (!data.updateCounter[i] || data.updateFlags[i] == null)
-                continue;
-
-            // Reset the cube flag
-            data.updateCounter[i] = false;
-
-            if (RealisticFluids.FlowEnabled)
+            data.ageSection(i, data.updateCounter[i] || data.lavaCounter[i]);
+            if (data.lavaCounter[i] && !lavaDue)
+                delegator.lavaWaiting++;
+
+            // Far chunks swept less often run a few passes to keep up
+            // (the pipeline commits once per sweep, a second pass would only be refused)
+            final int passes = engine == RealisticFluids.ENGINE_PIPELINE ? 1
+                    : Math.max(1, Math.min(data.elapsedSweeps, MAX_CATCH_UP));
+            for (int pass = 0; pass < passes; pass++)
             {
-                data.workingUpdate[i] = new boolean[4096];
-                System.arraycopy(data.updateFlags[i], 0, data.workingUpdate[i], 0, 4096);
-            }
-            data.updateFlags[i] = new boolean[4096];	// Yes, this is GC churn. These will still get set, just ignored.
-
-            // cost += Math.max(16, t.updateCounter[i] >> 6); //Moved this to
-            // the end
+                final boolean takeLava = lavaDue && data.lavaCounter[i];
+                if (!takeLava && (!data.updateCounter[i] || data.updateFlags[i] == null))
+                    break;
 
-            // ///////////////////////////////////////////////////////////////////////////////////
-            if (RealisticFluids.FlowEnabled)
-            {
-                for (int j = 0; j < 4096; j++)
-                    if (data.workingUpdate[i][j])
-                    {
-                        cost++;
-                        // Un-flag this block
-                        data.workingUpdate[i][j] = false;
+                // Reset the cube flag
+                data.updateCounter[i] = false;
 
-                        // Rebuild the coordinates from the array position
-                        x = (data.c.xPosition << 4) + (j & 0xF);
-                        y = (i << 4) + ((j >> 8) & 0xF);
-                        z = (data.c.zPosition << 4) + ((j >> 4) & 0xF);
+                if (RealisticFluids.FlowEnabled)
+                {
+                    data.workingUpdate[i] = new boolean[4096];
+                    if (data.updateFlags[i] != null)
+                        System.arraycopy(data.updateFlags[i], 0, data.workingUpdate[i], 0, 4096);
+                    if (takeLava)
+                        lavaTaken += takeLavaFlags(data, i, data.workingUpdate[i]);
+                }
+                data.updateFlags[i] = new boolean[4096];	// Yes, this is GC churn. These will still get set, just ignored.
 
-                        final Block b = data.c.getBlock(x & 0xF, y, z & 0xF);
-                        if (b instanceof BlockFiniteFluid)
-                            // Tick the water block
-                            ((BlockFiniteFluid) b).doUpdate(data, x, y, z, data.w.rand, interval);
+                // cost += Math.max(16, t.updateCounter[i] >> 6); //Moved this to
+                // the end
 
-                    }
+                // ///////////////////////////////////////////////////////////////////////////////////
+                // A few cells are cheaper one by one than loading a kernel
+                final boolean sparse = RealisticFluids.FlowEnabled && engine != RealisticFluids.ENGINE_CELL
+                        && FluidKernel.isSparse(data.workingUpdate[i]);
+                if (RealisticFluids.FlowEnabled && !sparse && engine == RealisticFluids.ENGINE_PIPELINE)
+                {
+                    cost += FluidPipeline.submit(data, i, data.workingUpdate[i], interval, startTime);
+                }
+                else if (RealisticFluids.FlowEnabled && !sparse && engine == RealisticFluids.ENGINE_KERNEL)
+                {
+                    cost += FluidKernel.get().run(data, i, data.workingUpdate[i], rand, interval);
+                }
+                else if (RealisticFluids.FlowEnabled)
+                {
+                    for (int j = 0; j < 4096; j++)
+                        if (data.workingUpdate[i][j])
+                        {
+                            cost++;
+                            // Un-flag this block
+                            data.workingUpdate[i][j] = false;
+
+                            // Rebuild the coordinates from the array position
+                            x = (data.c.xPosition << 4) + (j & 0xF);
+                            y = (i << 4) + ((j >> 8) & 0xF);
+                            z = (data.c.zPosition << 4) + ((j >> 4) & 0xF);
+
+                            final Block b = data.c.getBlock(x & 0xF, y, z & 0xF);
+                            if (b instanceof BlockFiniteFluid)
+                            {
+                                // Oceans are not simulated, only their shores
+                                if (RealisticFluids.OCEAN_RESERVOIR && FluidReservoir.exchange(data, (BlockFiniteFluid) b, x, y, z))
+                                    continue;
+                                // Tick the water block
+                                ((BlockFiniteFluid) b).doUpdate(data, x, y, z, rand, interval);
+                            }
+
+                        }
+                }
             }
         }
+        data.elapsedSweeps = 1;
+        delegator.lavaCells += lavaTaken;
+        delegator.waterCells += Math.max(0, cost - lavaTaken);
         // Finally, overall rainfall. This is per-chunk, not per-mini chunk, so it must be outside that loop
         if (RealisticFluids.FlowEnabled)
         {
-            doChunkRainfall(data, 3, isHighPriority);
+            doChunkRainfall(data, 3, isHighPriority, rand);
         }
 
         return cost;
     }
 
+    /**
+     * Moves the pending lava updates of a section into the working set.
+     *
+     * @return The number of cells moved
+     */
+    static int takeLavaFlags(final ChunkData data, final int i, final boolean[] working)
+    {
+        final boolean[] lava = data.lavaFlags[i];
+        data.lavaFlags[i] = null;
+        data.lavaCounter[i] = false;
+        if (lava == null)
+            return 0;
+        int n = 0;
+        for (int j = 0; j < 4096; j++)
+            if (lava[j])
+            {
+                working[j] = true;
+                n++;
+            }
+        return n;
+    }
+
     /**
      * Perform a specified number of random ticks in the 16x16x16 part of the
      * world.
@@ -490,7 +596,7 @@ public class FluidManager
      * @param number
      * @param isHighPriority
      */
-    public static void doRandomMinichunkTicks(final ChunkData data, final int ebsY, final int number, final boolean isHighPriority)
+    public static void doRandomMinichunkTicks(final ChunkData data, final int ebsY, final int number, final boolean isHighPriority, final Random rand)
     {
         // This routine schedules equalizations. They seem to cause more harm than good.
         // Disable for now.
@@ -503,9 +609,9 @@ public class FluidManager
         for (int i = 0; i < number; i++)
         {
 
-            final int cx = data.w.rand.nextInt(16);
-            int wy = data.w.rand.nextInt(16) + (ebsY << 4);
-            final int cz = data.w.rand.nextInt(16);
+            final int cx = rand.nextInt(16);
+            int wy = rand.nextInt(16) + (ebsY << 4);
+            final int cz = rand.nextInt(16);
 
             final Block b = data.c.getBlock(cx, wy, cz);
             // w.markBlockRangeForRenderUpdate(p_147458_1_, p_147458_2_,
@@ -547,7 +653,7 @@ public class FluidManager
                 final int level = data.getLevel(cx, wy, cz);
                 // Prevent spamming on flat ocean areas
                 if (level < RealisticFluids.MAX_FLUID - (RealisticFluids.MAX_FLUID / 16))
-                    if (data.w.rand.nextInt(5) == 0)
+                    if (rand.nextInt(5) == 0)
                         // System.out.println("Smoothing...");
                         FluidEqualizer.addSmoothTask(data.w, (data.c.xPosition << 4) + cx, wy, (data.c.zPosition << 4) + cz,
                                 (BlockFiniteFluid) b, RealisticFluids.MAX_FLUID >> 1, 8);
@@ -574,7 +680,7 @@ public class FluidManager
  * world.canLightningStrikeAt (x,y,z) -- test for sky exposure
  * And if so, plop some rainwater down.
  */
-    private static void doChunkRainfall(ChunkData data, int count, boolean isHighPriority)
+    private static void doChunkRainfall(ChunkData data, int count, boolean isHighPriority, Random rand)
     {
         // At some point, we need lavafall in the nether.
         // Where do we test for that?
@@ -587,7 +693,7 @@ public class FluidManager
             return;
         // Loop count times
         for (int i=0; i<count; i++)
-            doRainOnce(data, isHighPriority);
+            doRainOnce(data, isHighPriority, rand);
     }
 
     /*
@@ -645,11 +751,11 @@ public class FluidManager
         return 0;
     }
 
-    private static void doRainOnce (ChunkData data, boolean isHighPriority)
+    private static void doRainOnce (ChunkData data, boolean isHighPriority, Random rand)
     {
         // Get a position (x/z) in the chunk to test
-        final int cx = data.w.rand.nextInt(16);
-        final int cz = data.w.rand.nextInt(16);
+        final int cx = rand.nextInt(16);
+        final int cz = rand.nextInt(16);
         final int wx = cx + (data.c.xPosition << 4);
         final int wz = cz + (data.c.zPosition << 4);
         // World's current implementation of "getBiomeGenForCoords" goes though WorldProvider,
@@ -707,6 +813,12 @@ public class FluidManager
             FluidData.setLevel(data, Blocks.flowing_water, cx, cz, wx, rainY, wz, rainAmount, true);
     }
 
+    /** Sea level of the world, or -1 if it has none */
+    public static int seaLevel(final World w)
+    {
+        return aglToSeaLevel(w, w.provider.getAverageGroundLevel());
+    }
+
     private static int aglToSeaLevel(World w, int gAGL)
     {
         // Forge issue: "getAverageGroundLevel" is actually "getMinimumSpawnHeight".
@@ -0,0 +1,187 @@
+package com.mcfht.realisticfluids;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.mcfht.realisticfluids.FluidData.ChunkData;
+
+/**
+ * Snapshot, compute, commit. The pipeline flow engine.
+ *
+ * <p>
+ * The other engines read and write live chunk storage as they go, so they
+ * can only run on the server thread. Here the server thread only copies each
+ * active section into a kernel (snapshot), the flow rules run on the
+ * kernel's own buffers on a pool of threads (compute), and when the sweep is
+ * done the server thread writes the results back (commit).
+ *
+ * <p>
+ * Halos overlap, and the world may change between snapshot and commit, so
+ * every commit is checked first: if any cell the kernel changed no longer
+ * holds what the snapshot saw, the whole section is refused and its cells
+ * are flagged for the next sweep. This way no fluid is made or lost.
+ * Sections by the ocean reservoir, which need the world to decide, run
+ * straight away as with the kernel engine.
+ *
+ * @author FHT
+ */
+public class FluidPipeline
+{
+    static class Job
+    {
+        final FluidKernel       kernel;
+        final Future<Integer>   result;
+
+        Job(final FluidKernel kernel, final Future<Integer> result)
+        {
+            this.kernel = kernel;
+            this.result = result;
+        }
+    }
+
+    private static ExecutorService              pool        = null;
+    private static final ArrayList<FluidKernel> free        = new ArrayList<FluidKernel>();
+    private static final ArrayList<Job>         inFlight    = new ArrayList<Job>();
+
+    public static int                           committed   = 0;
+    public static int                           refused     = 0;
+    /** Refused sections run again on the server thread */
+    public static int                           rerunCount  = 0;
+
+    private static ExecutorService pool()
+    {
+        if (pool == null)
+            pool = Executors.newFixedThreadPool(Math.max(1, RealisticFluids.CORES - 1), new ThreadFactory()
+            {
+                int n = 0;
+
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread t = new Thread(r, "Fluid Pipeline " + this.n++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        return pool;
+    }
+
+    /**
+     * Snapshots a section and starts computing it. Server thread only.
+     *
+     * @param work The working update flags of the section, cleared
+     * @return Number of flagged cells
+     */
+    public static int submit(final ChunkData data, final int sy, final boolean[] work, final int interval, final int tick)
+    {
+        final FluidKernel kernel = free.isEmpty() ? new FluidKernel() : free.remove(free.size() - 1);
+        kernel.snapshot(data, sy, interval);
+        if (kernel.nearSea)
+        {
+            free.add(kernel);
+            return FluidKernel.get().run(data, sy, work, FluidRandom.get(), interval);
+        }
+
+        int cost = 0;
+        for (int j = 0; j < 4096; j++)
+        {
+            kernel.work0[j] = kernel.work[j] = work[j];
+            if (work[j])
+                cost++;
+            work[j] = false;
+        }
+        kernel.rand.reseed(FluidRandom.seedFor(data, tick) ^ sy);
+
+        final boolean idle = FluidIdle.dispatching;
+        final Future<Integer> result = pool().submit(new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+            {
+                // Idle work that did not start before the next tick gives up
+                if (idle && !FluidIdle.open)
+                    return -1;
+                return kernel.compute(kernel.work, kernel.rand);
+            }
+        });
+        (idle ? FluidIdle.inFlight : inFlight).add(new Job(kernel, result));
+        return cost;
+    }
+
+    /**
+     * Waits for every section in flight, then writes back the ones that are
+     * still valid. Server thread only, once the sweep has been handed out.
+     */
+    public static void commit()
+    {
+        for (final Job job : inFlight)
+        {
+            final FluidKernel kernel = job.kernel;
+            boolean ok;
+            try
+            {
+                job.result.get();
+                ok = true;
+            } catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                ok = false;
+            } catch (final ExecutionException e)
+            {
+                e.printStackTrace();
+                ok = false;
+            }
+
+            finish(kernel, ok, true);
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * Writes back a computed kernel if it is still valid, and frees it.
+     *
+     * <p>
+     * Neighbouring sections that both change their shared border always
+     * refuse the one committed second, so refusing it until next sweep would
+     * starve it for as long as the flood crosses the border. Instead it is
+     * snapshotted again, now that its neighbour is written, and run here.
+     *
+     * @param ok False if the kernel was not computed
+     * @param rerun Run a refused kernel again right away, rather than marking
+     *            its cells for the next sweep
+     * @return Whether it was written back
+     */
+    static boolean finish(final FluidKernel kernel, boolean ok, final boolean rerun)
+    {
+        final boolean live = kernel.data.epoch == kernel.epoch;
+        ok = ok && live && kernel.isUnchanged();
+        if (ok)
+        {
+            kernel.writeBack(kernel.data);
+            kernel.runFallback(kernel.rand);
+            committed++;
+        } else if (rerun && live)
+        {
+            System.arraycopy(kernel.work0, 0, kernel.work, 0, 4096);
+            kernel.snapshot(kernel.data, kernel.sy, kernel.interval);
+            kernel.compute(kernel.work, kernel.rand);
+            kernel.writeBack(kernel.data);
+            kernel.runFallback(kernel.rand);
+            rerunCount++;
+        } else
+        {
+            // If the chunk unloaded there is nothing left to mark
+            if (kernel.data.epoch == kernel.epoch)
+                kernel.remark();
+            refused++;
+        }
+        kernel.data = null;
+        free.add(kernel);
+        return ok;
+    }
+}
@@ -0,0 +1,83 @@
+package com.mcfht.realisticfluids;
+
+import java.util.Random;
+
+import com.mcfht.realisticfluids.FluidData.ChunkData;
+
+/**
+ * SplitMix64 generator for the flow code.
+ *
+ * <p>
+ * World.rand is one java.util.Random shared by everything in the world, with
+ * a compare-and-set on every draw. Workers now each own one of these, and it
+ * is reseeded from the chunk position and tick before each chunk, so a run
+ * draws the same numbers whatever thread or order it happens in.
+ *
+ * <p>
+ * It extends Random so it can be passed wherever a Random is taken; only
+ * {@link #next(int)} is replaced, and nothing is allocated per draw. Not
+ * thread safe, keep one per thread.
+ *
+ * @author FHT
+ */
+public class FluidRandom extends Random
+{
+    private static final long                   serialVersionUID    = 1L;
+    private static final long                   GOLDEN              = 0x9E3779B97F4A7C15L;
+
+    private static final ThreadLocal<FluidRandom> local             = new ThreadLocal<FluidRandom>()
+    {
+        @Override
+        protected FluidRandom initialValue()
+        {
+            return new FluidRandom();
+        }
+    };
+
+    private long                                state;
+
+    /** The generator of the current thread, for code outside the workers */
+    public static FluidRandom get()
+    {
+        return local.get();
+    }
+
+    /** Seed for the given chunk at the given tick */
+    public static long seedFor(final ChunkData data, final int tick)
+    {
+        return ((long) data.c.xPosition << 40) ^ ((long) data.c.zPosition << 16) ^ tick ^ data.w.getSeed();
+    }
+
+    public FluidRandom reseed(final long seed)
+    {
+        this.state = seed;
+        return this;
+    }
+
+    @Override
+    public synchronized void setSeed(final long seed)
+    {
+        // Called by the Random constructor, keep it cheap
+        this.state = seed;
+    }
+
+    @Override
+    protected int next(final int bits)
+    {
+        return (int) (this.nextLong64() >>> (64 - bits));
+    }
+
+    @Override
+    public long nextLong()
+    {
+        return this.nextLong64();
+    }
+
+    private long nextLong64()
+    {
+        long z = (this.state += GOLDEN);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,139 @@
+package com.mcfht.realisticfluids;
+
+import net.minecraft.world.biome.BiomeGenBase;
+
+import com.mcfht.realisticfluids.FluidData.ChunkData;
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
+
+/**
+ * Ocean reservoir mode. Worldgen water at and below sea level in ocean
+ * biomes is treated as one infinite body at a constant level: its cells are
+ * never simulated, and only the shoreline exchanges fluid with it.
+ *
+ * <p>
+ * A column is part of the reservoir when it is in an ocean or deep ocean
+ * biome and holds water from sea level straight down to some floor. The
+ * floor is cached per column and forgotten whenever a block in the column
+ * changes.
+ *
+ * @author FHT
+ */
+public class FluidReservoir
+{
+    static final short UNKNOWN = -2;
+    static final short NONE    = -1;
+
+    /** Whether x, y, z (in the chunk of data) is reservoir water */
+    public static boolean isReservoir(final ChunkData data, final int cx, final int wy, final int cz)
+    {
+        if (!RealisticFluids.OCEAN_RESERVOIR)
+            return false;
+        final int sea = FluidManager.seaLevel(data.w);
+        if (wy > sea || sea < 0)
+            return false;
+        final int floor = floorOf(data, cx, cz, sea);
+        return floor >= 0 && wy >= floor;
+    }
+
+    public static boolean isReservoirWorld(final ChunkData data, final int x, final int y, final int z)
+    {
+        final ChunkData data1 = FluidData.testCurrentChunkData(data, x, z);
+        return data1 != null && isReservoir(data1, x & 0xF, y, z & 0xF);
+    }
+
+    private static int floorOf(final ChunkData data, final int cx, final int cz, final int sea)
+    {
+        if (data.reservoirFloor == null)
+        {
+            final short[] floors = new short[256];
+            for (int i = 0; i < 256; i++)
+                floors[i] = UNKNOWN;
+            data.reservoirFloor = floors;
+        }
+        final int col = cx + (cz << 4);
+        short floor = data.reservoirFloor[col];
+        if (floor != UNKNOWN)
+            return floor;
+
+        floor = NONE;
+        final BiomeGenBase biome = data.w.getBiomeGenForCoords((data.c.xPosition << 4) + cx, (data.c.zPosition << 4) + cz);
+        if (biome == BiomeGenBase.ocean || biome == BiomeGenBase.deepOcean)
+        {
+            int y = sea;
+            while (y >= 0 && data.getCellClass(cx, y, cz) == FluidData.CLASS_WATER)
+                y--;
+            if (y < sea)
+                floor = (short) (y + 1);
+        }
+        return data.reservoirFloor[col] = floor;
+    }
+
+    /**
+     * The frontier exchange. Called for each flagged fluid cell before it
+     * flows.
+     *
+     * <p>
+     * Reservoir cells are not simulated; they just top up the non-reservoir
+     * cells next to them (and below them) that are at or under sea level.
+     * Water sitting on top of the reservoir drains into it, and water under
+     * sea level beside it is kept full.
+     *
+     * @return True if the cell is done, false if it should still flow
+     */
+    public static boolean exchange(final ChunkData data, final BlockFiniteFluid f, final int x, final int y, final int z)
+    {
+        if (f.cellClass != FluidData.CLASS_WATER)
+            return false;
+        final int sea = FluidManager.seaLevel(data.w);
+        if (sea < 0 || y > sea + 1)
+            return false;
+
+        if (isReservoir(data, x & 0xF, y, z & 0xF))
+        {
+            for (int d = 0; d < 5; d++)
+            {
+                final int x1 = x + (d < 4 ? Util.cardinalX(d) : 0);
+                final int y1 = d < 4 ? y : y - 1;
+                final int z1 = z + (d < 4 ? Util.cardinalZ(d) : 0);
+                if (y1 < 0)
+                    continue;
+                final ChunkData data1 = FluidData.testCurrentChunkData(data, x1, z1);
+                if (data1 == null || isReservoir(data1, x1 & 0xF, y1, z1 & 0xF))
+                    continue;
+                final int c1 = data1.getCellClass(x1 & 0xF, y1, z1 & 0xF);
+                if ((c1 == FluidData.CLASS_AIR || c1 == FluidData.CLASS_WATER)
+                        && FluidData.getLevel(data1, f, x1 & 0xF, y1, z1 & 0xF) < RealisticFluids.MAX_FLUID)
+                    FluidData.setLevelWorld(data1, f, x1, y1, z1, RealisticFluids.MAX_FLUID, true);
+            }
+            return true;
+        }
+
+        // Sitting on the reservoir, drain into it
+        if (y > 0 && isReservoir(data, x & 0xF, y - 1, z & 0xF))
+        {
+            FluidData.setLevelWorld(data, f, x, y, z, 0, true);
+            return true;
+        }
+
+        // Beside it, under sea level: the ocean keeps us full
+        if (y <= sea && FluidData.getLevel(data, f, x & 0xF, y, z & 0xF) < RealisticFluids.MAX_FLUID)
+            for (int d = 0; d < 4; d++)
+                if (isReservoirWorld(data, x + Util.cardinalX(d), y, z + Util.cardinalZ(d)))
+                {
+                    FluidData.setLevelWorld(data, f, x, y, z, RealisticFluids.MAX_FLUID, true);
+                    break;
+                }
+        return false;
+    }
+
+    /** Whether the cell is reservoir, or next to it, so the kernel must leave it to exchange */
+    public static boolean touches(final ChunkData data, final int x, final int y, final int z)
+    {
+        if (isReservoir(data, x & 0xF, y, z & 0xF) || (y > 0 && isReservoir(data, x & 0xF, y - 1, z & 0xF)))
+            return true;
+        for (int d = 0; d < 4; d++)
+            if (isReservoirWorld(data, x + Util.cardinalX(d), y, z + Util.cardinalZ(d)))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,152 @@
+package com.mcfht.realisticfluids;
+
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+
+/**
+ * Two level timing wheel of cells waiting for their fluid's turn, one per
+ * world.
+ *
+ * <p>
+ * Slow fluids (lava, and lava in the nether even more) only flow every few
+ * sweeps. A cell that was not due used to mark itself again, so it was
+ * scanned and turned away every sweep until its turn came. Now it is put in
+ * the slot of the tick it is due, and only marked again then.
+ *
+ * <p>
+ * The first level has one slot per tick for the next {@link #SLOTS} ticks,
+ * the second one slot per {@link #SLOTS} ticks after that. Second level slots
+ * are spread over the first level as they come up. Anything further out
+ * waits in the last slot. Cells in chunks that unloaded are dropped.
+ *
+ * @author FHT
+ */
+public class FluidTimingWheel
+{
+    public static final int SLOTS   = 64;
+    static final int        MASK    = SLOTS - 1;
+    static final int        SHIFT   = 6;
+
+    /** A growable list of packed cells with the tick each is due */
+    static class Slot
+    {
+        long[]  pos     = new long[8];
+        int[]   due     = new int[8];
+        int     n       = 0;
+
+        void add(final long p, final int t)
+        {
+            if (this.n == this.pos.length)
+            {
+                final long[] p1 = new long[this.n << 1];
+                final int[] t1 = new int[this.n << 1];
+                System.arraycopy(this.pos, 0, p1, 0, this.n);
+                System.arraycopy(this.due, 0, t1, 0, this.n);
+                this.pos = p1;
+                this.due = t1;
+            }
+            this.pos[this.n] = p;
+            this.due[this.n++] = t;
+        }
+    }
+
+    final Slot[]    near    = new Slot[SLOTS];
+    final Slot[]    far     = new Slot[SLOTS];
+    /** Last tick that was fired, -1 before the first advance */
+    int             now     = -1;
+    int             pending = 0;
+
+    public FluidTimingWheel()
+    {
+        for (int i = 0; i < SLOTS; i++)
+        {
+            this.near[i] = new Slot();
+            this.far[i] = new Slot();
+        }
+    }
+
+    /**
+     * Schedules the cell at x, y, z of w to be marked for update at the given
+     * tick.
+     */
+    public static void schedule(final World w, final int x, final int y, final int z, final int tick)
+    {
+        final FluidData.ChunkCache cache = FluidData.worldCache.get(w);
+        if (cache != null)
+            cache.wheel.schedule(x, y, z, tick);
+        else
+            RealisticFluids.markBlockForUpdate(w, x, y, z);
+    }
+
+    /**
+     * Schedules the cell at x, y, z to be marked for update at the given tick.
+     */
+    public synchronized void schedule(final int x, final int y, final int z, final int tick)
+    {
+        this.insert(FluidBodyIndex.pack(x, y, z), tick);
+        this.pending++;
+    }
+
+    private void insert(final long p, int tick)
+    {
+        final int base = this.now < 0 ? RealisticFluids.tickCounter() : this.now;
+        if (tick <= base)
+            tick = base + 1;
+        if (tick - base < SLOTS)
+            this.near[tick & MASK].add(p, tick);
+        else
+        {
+            // Past the end of the second level, wait in its last slot
+            final int t = Math.min(tick, base + SLOTS * (SLOTS - 1));
+            this.far[(t >> SHIFT) & MASK].add(p, tick);
+        }
+    }
+
+    /**
+     * Fires every slot up to the given tick. Called once per server tick.
+     */
+    public synchronized void advance(final World w, final int tick)
+    {
+        if (this.now < 0)
+            this.now = tick - 1;
+        while (this.now < tick)
+        {
+            this.now++;
+            // Entering a new lap of the first level, spread the next second level slot over it
+            if ((this.now & MASK) == 0)
+            {
+                final Slot s = this.far[(this.now >> SHIFT) & MASK];
+                final int n = s.n;
+                s.n = 0;
+                for (int i = 0; i < n; i++)
+                    this.insert(s.pos[i], s.due[i]);
+            }
+            final Slot s = this.near[this.now & MASK];
+            final int n = s.n;
+            s.n = 0;
+            for (int i = 0; i < n; i++)
+            {
+                final long p = s.pos[i];
+                this.pending--;
+                if (s.due[i] > this.now)
+                {
+                    // Clamped in the last slot, put it back further along
+                    this.insert(p, s.due[i]);
+                    this.pending++;
+                    continue;
+                }
+                final int x = FluidBodyIndex.unpackX(p), y = FluidBodyIndex.unpackY(p), z = FluidBodyIndex.unpackZ(p);
+                if (!w.getChunkProvider().chunkExists(x >> 4, z >> 4))
+                    continue;
+                final Chunk c = w.getChunkFromChunkCoords(x >> 4, z >> 4);
+                FluidData.getChunkData(c).markUpdate(x & 0xF, y, z & 0xF);
+            }
+        }
+    }
+
+    /** Cells waiting in the wheel */
+    public int pending()
+    {
+        return this.pending;
+    }
+}
@@ -0,0 +1,66 @@
+package com.mcfht.realisticfluids;
+
+import net.minecraft.block.Block;
+import net.minecraft.world.World;
+
+import com.mcfht.realisticfluids.FluidData.ChunkData;
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
+
+/**
+ * Wakes fluid next to doors and trapdoors when they are toggled.
+ *
+ * <p>
+ * The old door patch forced every toggle to throw full block updates at all
+ * neighbours, fluid or not, so a redstone door farm would flood the server
+ * with updates. Now the metadata write is redirected here by ASM (see
+ * PatchDoorUpdates), and only the fluid cells around the door are flagged
+ * for the next sweep.
+ *
+ * @author FHT
+ */
+public class FluidWake
+{
+    /** ASM hook, replaces World.setBlockMetadataWithNotify(x, y, z, meta, flag) */
+    public static boolean setBlockMetadataWithNotify(final World w, final int x, final int y, final int z, final int m, final int flag)
+    {
+        final boolean changed = w.setBlockMetadataWithNotify(x, y, z, m, flag);
+        if (!changed || w.isRemote || !RealisticFluids.FlowEnabled)
+            return changed;
+
+        final ChunkData data = FluidData.getChunkData(w.getChunkFromChunkCoords(x >> 4, z >> 4));
+        wakeNeighbors(data, x, y, z);
+
+        // Doors keep their state in the bottom half, but the top half opens too
+        if (y < 255 && w.getBlock(x, y + 1, z) == w.getBlock(x, y, z))
+            wakeNeighbors(data, x, y + 1, z);
+        return changed;
+    }
+
+    /**
+     * Flags the six cells around x, y, z, but only those that hold fluid.
+     * Neighbours in chunks that are not loaded are skipped, never loaded. A
+     * loaded chunk without fluid data gets it, like in any other update.
+     */
+    public static void wakeNeighbors(final ChunkData data, final int x, final int y, final int z)
+    {
+        if (y < 255)
+            wake(data, x, y + 1, z);
+        if (y > 0)
+            wake(data, x, y - 1, z);
+        for (int i = 0; i < 4; i++)
+            wake(data, x + Util.cardinalX(i), y, z + Util.cardinalZ(i));
+    }
+
+    private static void wake(ChunkData data, final int x, final int y, final int z)
+    {
+        // getChunkFromChunkCoords would load it
+        if (!data.w.getChunkProvider().chunkExists(x >> 4, z >> 4))
+            return;
+        data = FluidData.testCurrentChunkData(data, x, z);
+        if (data == null)
+            return;
+        final Block b = data.c.getBlock(x & 0xF, y, z & 0xF);
+        if (b instanceof BlockFiniteFluid)
+            data.markUpdate(x & 0xF, y, z & 0xF);
+    }
+}
@@ -1,8 +1,11 @@
 package com.mcfht.realisticfluids;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import net.minecraft.block.Block;
 import net.minecraft.entity.player.EntityPlayer;
@@ -24,8 +27,9 @@ import com.mcfht.realisticfluids.FluidData.ChunkData;
 import com.mcfht.realisticfluids.asm.PatchBlockRegistry;
 import com.mcfht.realisticfluids.commands.CommandDeflood;
 import com.mcfht.realisticfluids.commands.CommandEnableFlow;
+import com.mcfht.realisticfluids.commands.CommandFluidStats;
 import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
-import com.mcfht.realisticfluids.fluids.BlockFiniteWater;
+import com.mcfht.realisticfluids.network.FluidNetwork;
 
 import cpw.mods.fml.common.DummyModContainer;
 import cpw.mods.fml.common.FMLCommonHandler;
@@ -119,8 +123,90 @@ public class RealisticFluids extends DummyModContainer
 	/** Runniness of lava */
 	public static final int	lavaVisc			= 3;
 
+	// //////////////////////////FLOW ENGINE////////////////////////
+	/** Cell by cell doUpdate */
+	public static final int	ENGINE_CELL			= 0;
+	/** Section-local kernel with halo buffers, see FluidKernel */
+	public static final int	ENGINE_KERNEL		= 1;
+	/** Kernels computed off the server thread, see FluidPipeline */
+	public static final int	ENGINE_PIPELINE		= 2;
+	/** Kernel and pipeline engines read the sweep's starting levels only, see FluidKernel.computeJacobi */
+	public static boolean	JACOBI				= false;
+	/** Which engine performs the flow sweeps */
+	public static int		FLOW_ENGINE			= ENGINE_CELL;
+	/** Sections with fewer flagged cells run cell by cell, whatever the engine */
+	public static int		KERNEL_MIN_CELLS	= 64;
+
+	// //////////////////////////FLUID BODIES///////////////////////
+	/** Track connected fluid bodies and level them as a whole, see FluidBodyIndex */
+	public static boolean	BODY_INDEX			= false;
+
+	/** Drop the tracking of settled sections, see ChunkData.freezeSection */
+	public static boolean	FREEZE_SETTLED		= false;
+	/** Idle sweeps before a section is considered settled */
+	public static int		FREEZE_SWEEPS		= 20;
+
+	/** Treat ocean water at sea level as an infinite reservoir, see FluidReservoir */
+	public static boolean	OCEAN_RESERVOIR		= false;
+
+	/** Move falling fluid to where it lands in one step, see FluidFall */
+	public static boolean	FAST_FALL			= false;
+
+	/** Only wake neighbours for changes that move the flood front, see FluidData.isFrontierChange */
+	public static boolean	FRONTIER_TRACKING	= false;
+	/** Smallest transfer that still wakes the neighbours */
+	public static int		FRONTIER_THRESHOLD	= BlockFiniteFluid.FLOW_THRESHOLD << 6;
+
+	/** Sweep far chunks less often the further they are, see isSweepDue */
+	public static boolean	MULTI_RATE			= false;
+	/** Width of each slower ring, in chunks */
+	public static int		RATE_RING_WIDTH		= 2;
+	/** Slowest rate, as a multiple of GLOBAL_RATE */
+	public static int		RATE_MAX_MULTIPLE	= 4;
+	/** Sweeps so far, the clock the rings take turns by */
+	static int				sweepCount			= 0;
+
+	/** Collapse chunks past LOD_RANGE into column volumes, see FluidLOD */
+	public static boolean	LOD_ENABLED			= false;
+	public static int		LOD_RANGE			= 3;
+
+	/** Park cells of slow fluids until they are due, see FluidTimingWheel */
+	public static boolean	TIMING_WHEEL		= false;
+
+	/** Keep lava updates apart from water updates, see ChunkData.lavaFlags */
+	public static boolean	SPLIT_FLUID_SETS	= false;
+
+	/** Flow into another chunk goes through its TransferInbox */
+	public static boolean	TRANSFER_INBOX		= false;
+
+	/** Spread chunk sweeps over the ticks of each interval, see sweepPhase */
+	public static boolean	STAGGER_SWEEPS		= false;
+	/** Sweep cost of each phase, the last time it ran. Sized by FluidConfig to GLOBAL_RATE_MAX */
+	static int[]			phaseCost			= new int[GLOBAL_RATE_MAX];
+	/** The rate the current stagger cycle runs at, only picked up from GLOBAL_RATE between cycles */
+	static int				staggerRate			= 0;
+	/** Phase of the current stagger cycle */
+	static int				staggerTick			= 0;
+
+	/** Run leftover far chunks in the idle time between ticks, see FluidIdle */
+	public static boolean	IDLE_SIMULATION		= false;
+	/** Time at the end of each tick left alone, in ms */
+	public static int		IDLE_RESERVE		= 10;
+
 	// //////////////////////////ASM SETTINGS///////////////////////
 	public static boolean	ASM_DOOR			= true;
+
+	// //////////////////////////DEFERRED WRITES////////////////////
+	/** Max number of deferred block writes before producers are pushed back */
+	public static int		DEFERRED_CAPACITY	= 65536;
+	/** Time the server tick may spend on deferred writes, in nanoseconds */
+	public static long		DEFERRED_BUDGET		= 5000000L;
+	/** The thread that runs the server tick */
+	static volatile Thread	serverThread		= null;
+
+	// //////////////////////////NETWORK SETTINGS///////////////////
+	/** Send level changes through the compact delta channel */
+	public static boolean	PACKET_DELTAS		= false;
 	
 	int countSinceTickRan                       = 0;
 
@@ -149,6 +235,7 @@ public class RealisticFluids extends DummyModContainer
 		// Register event handlers
 		FMLCommonHandler.instance().bus().register(this);
 		MinecraftForge.EVENT_BUS.register(this);
+		FluidNetwork.init();
 		try
 		{
 		} catch (final Exception e)
@@ -164,6 +251,9 @@ public class RealisticFluids extends DummyModContainer
         evt.registerServerCommand(new CommandEnableFlow());
         System.out.println("*** Deflood COMMAND ***");
         evt.registerServerCommand(new CommandDeflood());
+        evt.registerServerCommand(new CommandFluidStats());
+        // Block IDs may have been remapped for this world
+        FluidBehaviour.rebuild();
     }
 
     @SubscribeEvent
@@ -266,6 +356,7 @@ public class RealisticFluids extends DummyModContainer
 		// Warning will not flag changes very far through the system!
 		ebs.setExtBlockMetadata(x, y, z, m);
 		ebs.func_150818_a(x, y, z, b); // If there was a block
+		FluidData.getChunkData(c).setCellClass(x, realY, z, b);
 		if (Blocks.air == b)
 		     decHeightMapForAir (c, x, realY, z);
 		else setMinimumHeightMap(c, x, realY, z);
@@ -307,7 +398,11 @@ public class RealisticFluids extends DummyModContainer
 		// At CPU level, this costs many less clocks than > or <, since we are
 		// targetting specific conditions
 		// if ((flag & 0x2) == (_flag))
-		w.markBlockForUpdate(x, y, z);
+		// Meta only changes can go out through the compact channel instead
+		if (PACKET_DELTAS)
+			FluidNetwork.recordMeta(FluidData.getChunkData(c), x & 0xF, y, z & 0xF);
+		else
+			w.markBlockForUpdate(x, y, z);
 		if ((flag & 0x1) != (_flag))
 			w.notifyBlockChange(x, y, z, ebs.getBlockByExtId(x & 0xF, y & 0xF, z & 0xF));
 		x &= 0xF;
@@ -321,6 +416,35 @@ public class RealisticFluids extends DummyModContainer
 		c.updateSkylightColumns[x + (z << 4)] = true;
 	}
 
+	/**
+	 * Trusted metadata write for level changes. Writes the nibble straight into
+	 * the section, no block lookups and no mod block protection; the caller
+	 * must already know the cell holds the same finite fluid. Use
+	 * {@link #setMetadata} for anything else.
+	 *
+	 * @param data
+	 * @param view
+	 *            : current view of the section holding the cell
+	 * @param idx
+	 *            : cell index within the section
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param m
+	 * @param flag
+	 */
+	public static void setMetadataTrusted(final ChunkData data, final SectionView view, final int idx, final int x, final int y,
+			final int z, final int m, final int flag)
+	{
+		view.setMeta(idx, m);
+		if (PACKET_DELTAS)
+			FluidNetwork.recordMeta(data, x & 0xF, y, z & 0xF);
+		else
+			data.w.markBlockForUpdate(x, y, z);
+		if ((flag & 0x1) != ((flag >> 31) & 0x1))
+			data.w.notifyBlockChange(x, y, z, view.getBlock(idx));
+	}
+
 	/**
 	 * Guaranteed thread safe block setting method, directly manipulates EBS,
 	 * skips some redundant world.setBlock calls, allows skipping of light
@@ -360,7 +484,7 @@ public class RealisticFluids extends DummyModContainer
 		if (!immediate)
 		{
             validateModWater(w, x, y, z, b);
-			BlockTask.blockTasks.add(new BlockTask(w, c, ebs, x, y, z, b, m, flag));
+			deferred.add(new BlockTask(w, c, ebs, x, y, z, b, m, flag), FluidData.getChunkData(c).isNear);
 			return;
 		}
 		if (b == null)
@@ -406,7 +530,7 @@ public class RealisticFluids extends DummyModContainer
 		// then it should already be converted to air. But in at least one instance I've seen a vine block here.
 		//
 		// Test for this case -- a block that water should have already broken but did not -- and if so, don't complain
-		if ((new BlockFiniteWater()).canBreak(w, x, y, z))
+		if (FluidBehaviour.canBreak((BlockFiniteFluid) Blocks.flowing_water, old))
 		    return;
 		// Something is seriously wrong -- getting here means we've got a serious problem. Abort the game to avoid more damage.
 		throw new RuntimeException("Bad/unknown case in validateModWater! Aborting to prevent world damage. x/y/z: " 
@@ -423,21 +547,148 @@ public class RealisticFluids extends DummyModContainer
 		setBlock(world, x, y, z, block, meta, flag, true);
 	}
 	/**
-	 * Simple queue implementation to prevent duplicate entries. TODO Benchmark
+	 * Bounded queue of deferred block writes, with two priority classes. Writes
+	 * in chunks near a player drain first, the rest only with what is left of
+	 * the tick budget.
+	 *
+	 * <p>
+	 * When full, producers are pushed back: the server thread just performs the
+	 * write itself, any other thread waits until the server thread has drained
+	 * some room.
 	 *
 	 * @author FHT
-	 * @param <E>
 	 */
-	static class QueueSet<E> extends ConcurrentLinkedQueue<E>
+	static class DeferredQueue
+	{
+		final ConcurrentLinkedQueue<BlockTask>	near	= new ConcurrentLinkedQueue<BlockTask>();
+		final ConcurrentLinkedQueue<BlockTask>	far		= new ConcurrentLinkedQueue<BlockTask>();
+		/** ConcurrentLinkedQueue.size() walks the whole queue, so count ourselves */
+		final AtomicInteger						depth	= new AtomicInteger(0);
+
+		/** Total number of writes ever performed, for the stats command */
+		long									drained	= 0;
+		/** Number of times a producer hit a full queue */
+		final AtomicInteger						stalls	= new AtomicInteger(0);
+
+		public void add(final BlockTask task, final boolean isNear)
+		{
+			while (this.depth.get() >= DEFERRED_CAPACITY)
+			{
+				this.stalls.incrementAndGet();
+				if (Thread.currentThread() == serverThread)
+				{
+					// Caller runs; the queue only exists to get writes onto this thread
+					task.set();
+					return;
+				}
+				LockSupport.parkNanos(100000L);
+			}
+			this.depth.incrementAndGet();
+			(isNear ? this.near : this.far).add(task);
+		}
+
+		/**
+		 * Performs deferred writes until the queue is empty or the budget runs
+		 * out. Server thread only.
+		 */
+		public int drain(final long budgetNanos)
+		{
+			final long start = System.nanoTime();
+			int done = 0;
+			BlockTask task;
+			while ((task = this.near.poll()) != null || (task = this.far.poll()) != null)
+			{
+				this.depth.decrementAndGet();
+				task.set();
+				// nanoTime is not free either
+				if ((++done & 0xF) == 0 && System.nanoTime() - start > budgetNanos)
+					break;
+			}
+			this.drained += done;
+			return done;
+		}
+
+		public int size()
+		{
+			return this.depth.get();
+		}
+
+		/** Age of the oldest pending write in nanoseconds, 0 if empty */
+		public long oldestAge()
+		{
+			final long now = System.nanoTime();
+			final BlockTask n = this.near.peek();
+			final BlockTask f = this.far.peek();
+			long age = 0;
+			if (n != null)
+				age = now - n.queued;
+			if (f != null)
+				age = Math.max(age, now - f.queued);
+			return age;
+		}
+
+		public String getStats()
+		{
+			return "Deferred writes: " + this.size() + " queued (" + this.near.size() + " near), oldest "
+					+ (this.oldestAge() / 1000000L) + " ms, " + this.drained + " done, " + this.stalls.get() + " stalls";
+		}
+	}
+
+	/** The deferred block write queue, see {@link #setBlock} */
+	static final DeferredQueue	deferred	= new DeferredQueue();
+
+	/** Gauges for the stats command, one line each */
+	public static List<String> getStats()
 	{
-	    private static final long serialVersionUID = 1L;
-		@Override
-		public boolean add(final E e)
+		final List<String> lines = new ArrayList<String>();
+		lines.add(deferred.getStats());
+		if (BODY_INDEX)
+			for (final World w : FluidData.worldCache.keySet())
+			{
+				final FluidBodyIndex index = FluidBodyIndex.of(w);
+				lines.add("Fluid bodies in dim " + w.provider.dimensionId + ": " + index.bodyCount() + " (" + index.cellCount()
+						+ " cells, " + index.frontierCount() + " front changes this tick)");
+			}
+		if (TRANSFER_INBOX)
+			lines.add("Fluid in transit between chunks: " + TransferInbox.inTransit());
+		if (FLOW_ENGINE == ENGINE_PIPELINE || IDLE_SIMULATION)
+			lines.add("Pipeline sections committed: " + FluidPipeline.committed + ", run again: " + FluidPipeline.rerunCount + ", refused: "
+					+ FluidPipeline.refused);
+		if (IDLE_SIMULATION)
+			lines.add("Idle time: " + FluidIdle.chunks + " far chunks run, " + FluidIdle.committed + " sections committed, "
+					+ FluidIdle.dropped + " dropped, " + FluidIdle.pending() + " in flight");
+		if (SPLIT_FLUID_SETS)
+			lines.add("Last sweep: " + FluidManager.delegator.lastWaterCells + " water cells, " + FluidManager.delegator.lastLavaCells
+					+ " lava cells, " + FluidManager.delegator.lastLavaWaiting + " lava sections waiting their turn");
+		if (TIMING_WHEEL)
+			for (final World w : FluidData.worldCache.keySet())
+				lines.add("Cells waiting their turn in dim " + w.provider.dimensionId + ": " + FluidData.worldCache.get(w).wheel.pending());
+		if (STAGGER_SWEEPS)
 		{
-			if (super.contains(e))
-				return false;
-			return super.add(e);
+			int min = Integer.MAX_VALUE, max = 0, sum = 0;
+			final int rate = Math.max(1, staggerRate);
+			for (int p = 0; p < rate; p++)
+			{
+				min = Math.min(min, phaseCost[p]);
+				max = Math.max(max, phaseCost[p]);
+				sum += phaseCost[p];
+			}
+			lines.add("Sweep cost per phase: min " + min + ", mean " + sum / rate + ", max " + max + " over " + rate
+					+ " phases");
 		}
+		if (LOD_ENABLED)
+			for (final World w : FluidData.worldCache.keySet())
+			{
+				int chunks = 0, columns = 0;
+				for (final ChunkData data : FluidData.worldCache.get(w).chunks.values())
+					if (data.lod != null)
+					{
+						chunks++;
+						columns += data.lod.columns();
+					}
+				lines.add("Collapsed chunks in dim " + w.provider.dimensionId + ": " + chunks + " (" + columns + " columns)");
+			}
+		return lines;
 	}
 
 	/**
@@ -448,8 +699,6 @@ public class RealisticFluids extends DummyModContainer
 	 */
 	private static class BlockTask
 	{
-		public static QueueSet<BlockTask>	blockTasks	= new QueueSet<BlockTask>();
-
 		World								w;
 		Chunk								c;
 		ExtendedBlockStorage				ebs;
@@ -459,6 +708,7 @@ public class RealisticFluids extends DummyModContainer
 		Block								b;
 		int									m;
 		int									f;
+		long								queued;
 
 		/** Block Task object to be constructed for thread safe block setting! */
 		BlockTask(final World world, final Chunk c, final ExtendedBlockStorage ebs, final int x, final int y, final int z, final Block b,
@@ -473,12 +723,19 @@ public class RealisticFluids extends DummyModContainer
 			this.b = b;
 			this.m = m;
 			this.f = flag;
+			this.queued = System.nanoTime();
 		}
 
 		/** Perform this block task. Thread Safe. */
 		public boolean set()
 		{
-			setBlock(this.w, this.c, this.ebs, this.x, this.y, this.z, this.b, this.m, this.f);
+			// The EBS may have been created since we were queued
+			if (this.ebs == null)
+				this.ebs = this.c.getBlockStorageArray()[this.y >> 4];
+			if (this.b == null)
+				setMetadata(this.w, this.c, this.ebs, this.x, this.y, this.z, this.m, this.f);
+			else
+				setBlock(this.w, this.c, this.ebs, this.x, this.y, this.z, this.b, this.m, this.f);
 			return true;
 		}
 	}
@@ -492,12 +749,8 @@ public class RealisticFluids extends DummyModContainer
     public void chunkUnload(final ChunkEvent.Unload event)
     {
         // System.out.println("Unloading chunk " + event.getChunk().xPosition + ", " + event.getChunk().zPosition);
-        if (FluidData.worldCache.get(event.world) != null)
-            FluidData.worldCache.get(event.world).chunks.remove(event.getChunk());
-        
-        // FIXME: Have to remove from the tracking queues and the task lists.
-        // FIXME: Leaks the world otherwise?
-        // FIXME: How to track chunk x/z in dimension 0 from x/z in dimension -1?
+        // Queued tasks keep their ChunkData, but see it is dead by its epoch
+        FluidData.unloadChunkData(event.world, event.getChunk());
     }
 
     /**
@@ -529,23 +782,24 @@ public class RealisticFluids extends DummyModContainer
 	{
 		// Just to be safe
 		PatchBlockRegistry.counter = 0;
-		if (FluidData.worldCache.get(event.world) != null)
-		{
-		    HashMap<Chunk, ChunkData> chunkUnload = (HashMap<Chunk, ChunkData>) FluidData.worldCache.get(event.world).chunks;
-			for (final ChunkData c : chunkUnload.values())
-				chunkUnload.remove(c);
-		}
+		FluidData.unloadWorldData(event.world);
 	}
 
 	@SubscribeEvent
 	public void serverTick(final ServerTickEvent event)
 	{
+	    serverThread = Thread.currentThread();
 	    if (RealisticFluids.FlowEnabled) // NOTE! There is a small segment at the end that happens anyways
 	    {
 	        if (event.phase == Phase.START)
 	        {
 	            _tickCounter += 1;
 	            countSinceTickRan++;
+	            if (IDLE_SIMULATION || !FluidIdle.inFlight.isEmpty())
+	                FluidIdle.tickStart();
+	            if (TIMING_WHEEL)
+	                for (final World w : FluidData.worldCache.keySet())
+	                    FluidData.worldCache.get(w).wheel.advance(w, _tickCounter);
 	            final long timeCost = System.currentTimeMillis() - this.lastTime;
 	            if (this.lastTime > 0)
 	                if (timeCost > 500)
@@ -558,8 +812,13 @@ public class RealisticFluids extends DummyModContainer
 	        // System.out.println("Doing tick");
 	        if (event.phase == Phase.END && (countSinceTickRan >= GLOBAL_RATE) )
 	        {
+	            // Only the staggered mode keeps the equaliser to one run per interval,
+	            // the plain sweep keeps its old every tick cadence once warmed up
+	            if (STAGGER_SWEEPS)
+	                countSinceTickRan = 0;
 	            FluidEqualizer.WORKER.run();
-	            tickChunks();
+	            if (!STAGGER_SWEEPS)
+	                tickChunks();
 	            
 	            /*
 	             * FluidManager.PWorker.quota = tickQuota;
@@ -577,48 +836,153 @@ public class RealisticFluids extends DummyModContainer
 	             * FluidManager.TRIVIAL.run();
 	             */
 	        }
+	        // Staggered, every tick sweeps its own share of the chunks
+	        if (event.phase == Phase.END && STAGGER_SWEEPS)
+	            tickChunks();
+	        // Leftover far chunks go to the pool while the server sleeps
+	        if (event.phase == Phase.END && IDLE_SIMULATION)
+	            FluidIdle.tickEnd();
 	    }   // NOTE! End of "If Flow Enabled" -- backlogged block updates still happen!
 	    
+	    if (FAST_FALL && event.phase == Phase.END)
+	        FluidFall.tick();
+
+	    if (PACKET_DELTAS && event.phase == Phase.END)
+	        FluidNetwork.flush();
+
 	    // Set blocks for a little bit on the server thread
 	    // This is triggered from using the setBlock call WITHOUT Immediacy
 	    // NOTE: This is 100% utterly thread safe.
-	    int toPerform = BlockTask.blockTasks.size() / 16;
-	    toPerform = toPerform > 32 ? 32 : toPerform;
-	    
-	    // Prevent lagging the system by allocating a max amount of time
-	    while (System.currentTimeMillis() - this.lastTime < 10 && BlockTask.blockTasks.size() > 0)
-	        for (int i = 0; i < Math.min(toPerform, BlockTask.blockTasks.size()); i++)
-	            BlockTask.blockTasks.remove().set();
+	    // Once per tick, at the end, or the budget would be spent twice
+	    if (event.phase == Phase.END)
+	        deferred.drain(DEFERRED_BUDGET);
 	}
 
+    /**
+     * Multi-rate sweeps. Chunks past the near range are put in rings of
+     * RATE_RING_WIDTH chunks, and ring n is only swept every n + 1 sweeps (up
+     * to RATE_MAX_MULTIPLE). The sweep it does get then runs one pass for
+     * each sweep it sat out (see FluidManager.MAX_CATCH_UP), so far water
+     * flows as fast as near water, in bigger steps.
+     *
+     * <p>
+     * The chunks of a ring take turns by their position, so only a 1 / n
+     * share of ring n runs in any one sweep. The passes are then spread out
+     * as evenly as the sweeps they stand in for, instead of all of a ring
+     * catching up at once.
+     *
+     * @param d Distance from the chunk to the nearest player, in chunks
+     */
+    static boolean isSweepDue(final ChunkData data, final int d)
+    {
+        if (!MULTI_RATE)
+            return true;
+        final int multiple = Math.min(RATE_MAX_MULTIPLE, 2 + (d - UPDATE_RANGE - 1) / RATE_RING_WIDTH);
+        // Not its turn yet, unless it moved to a slower ring and waited a full multiple
+        if (++data.sweepsSkipped < multiple && (sweepCount + chunkHash(data.c)) % multiple != 0)
+            return false;
+        data.elapsedSweeps = data.sweepsSkipped;
+        data.sweepsSkipped = 0;
+        return true;
+    }
+
+    /**
+     * The tick of each interval a chunk is swept in, with STAGGER_SWEEPS.
+     * Sweeping every chunk in the same tick made one tick in GLOBAL_RATE
+     * spike while the rest sat idle. Hashing the position spreads chunks
+     * evenly over the phases, and neighbours mostly land in different ones.
+     *
+     * <p>
+     * The throttle changes GLOBAL_RATE while the server runs. Phases are
+     * taken modulo staggerRate, which only follows it at the start of a
+     * cycle, so within a cycle every chunk is swept exactly once.
+     */
+    static int sweepPhase(final Chunk c)
+    {
+        return chunkHash(c) % staggerRate;
+    }
+
+    /** A well mixed, positive hash of the chunk position */
+    static int chunkHash(final Chunk c)
+    {
+        int h = c.xPosition * 0x9E3779B1 ^ c.zPosition * 0x85EBCA6B;
+        h ^= h >>> 15;
+        return h & 0x7FFFFFFF;
+    }
+
+    static boolean hasPendingUpdates(final ChunkData data)
+    {
+        for (int i = 0; i < 16; i++)
+            if (data.updateCounter[i] || data.lavaCounter[i])
+                return true;
+        return false;
+    }
+
     public static void tickChunks() // Called from command Deflood
     {
+        int phase = -1;
+        if (STAGGER_SWEEPS)
+        {
+            // A new cycle picks up the current rate
+            if (staggerTick >= staggerRate)
+            {
+                staggerTick = 0;
+                staggerRate = Math.min(GLOBAL_RATE, phaseCost.length);
+            }
+            phase = staggerTick++;
+        }
+        if (phase <= 0)
+            sweepCount++;
         for (final World w : MinecraftServer.getServer().worldServers)
         {
+            final ChunkCache cache = FluidData.worldCache.get(w);
+            if (cache != null)
+                for (final ChunkData data : cache.chunks.values())
+                    data.isNear = false;
             if (w.playerEntities == null || w.playerEntities.size() == 0)
                 continue;
-            for (final Object p : w.playerEntities)
+            final ChunkCache map = FluidData.worldCache.get(w);
+            if (map == null)
+                continue;
+            // iterate over all flagged chunks
+            for (final ChunkData data : map.chunks.values())
             {
-                final EntityPlayer player = (EntityPlayer) p;
-                final ChunkCache map = FluidData.worldCache.get(w);
-                if (map == null)
-                    continue;
-                // iterate over all flagged chunks
-                for (final Chunk c : map.chunks.keySet())
+                final Chunk c = data.c;
+                if (!c.isChunkLoaded)
+                    continue;// Just to be safe;
+                // CHANGE: Square, not circular, range checking. Distance to the nearest player.
+                int d = Integer.MAX_VALUE;
+                for (final Object p : w.playerEntities)
                 {
-                    if (!c.isChunkLoaded)
-                        continue;// Just to be safe;
-                    // CHANGE: Square, not circular, range checking
+                    final EntityPlayer player = (EntityPlayer) p;
                     final int x = Math.abs(c.xPosition - (((int) player.posX) >> 4));
                     final int z = Math.abs(c.zPosition - (((int) player.posZ) >> 4));
-                    if (x <= UPDATE_RANGE && z <= UPDATE_RANGE)
-                        map.priority.add(c);
-                    else if (x <= UPDATE_RANGE_FAR && z <= UPDATE_RANGE_FAR)
-                        // System.out.println("Found distant chunk: " +
-                        // map.distant.size());
-                        // if (map.distant.size() < 256)
-                        // System.out.println("Added eeet");
-                        map.distant.add(c);
+                    d = Math.min(d, Math.max(x, z));
+                }
+                // Back in range, or touched: pour the columns back into cells. Near
+                // chunks always expand, they are swept cell by cell whatever LOD_RANGE says
+                if (data.lod != null && (!LOD_ENABLED || d <= Math.max(LOD_RANGE, UPDATE_RANGE) || data.lodWake))
+                    FluidLOD.expand(data);
+
+                if (phase >= 0 && sweepPhase(c) != phase)
+                {
+                    // Not this chunk's tick, but keep it counted as near
+                    data.isNear = d <= UPDATE_RANGE;
+                    continue;
+                }
+                if (d <= UPDATE_RANGE)
+                {
+                    map.priority.add(c);
+                    data.isNear = true;
+                    data.sweepsSkipped = 0;
+                    data.elapsedSweeps = 1;
+                }
+                else if (d <= UPDATE_RANGE_FAR && isSweepDue(data, d))
+                {
+                    // Only collapse once the chunk has settled, so it doesn't flip back and forth
+                    if (LOD_ENABLED && d > LOD_RANGE && data.lod == null && !hasPendingUpdates(data))
+                        FluidLOD.collapse(data);
+                    map.distant.add(c);
                 }
             }
         }
@@ -626,6 +990,8 @@ public class RealisticFluids extends DummyModContainer
         FluidManager.delegator.myStartTick = tickCounter();
         FluidManager.delegator.worlds = MinecraftServer.getServer().worldServers.clone();
         FluidManager.delegator.performTasks();
+        if (phase >= 0)
+            phaseCost[phase] = FluidManager.delegator.sweepCost.get();
     }
 
 }
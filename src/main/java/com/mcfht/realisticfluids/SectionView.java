@@ -0,0 +1,62 @@
+package com.mcfht.realisticfluids;
+
+import net.minecraft.block.Block;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+/**
+ * Direct view of one 16x16x16 section of a chunk. Cell indices are the same
+ * as everywhere else in the fluid code: cx + (cz << 4) + ((wy & 0xF) << 8),
+ * which also happens to be the vanilla NibbleArray layout.
+ *
+ * <p>
+ * The view does <b>no</b> checking of its own. It is only handed out for a
+ * section that exists, and it is the caller's job to know what block is in
+ * the cell before writing to it.
+ *
+ * @author FHT
+ */
+public class SectionView
+{
+    public final Chunk                  c;
+    /** Section index, wy >> 4 */
+    public final int                    sy;
+    public final ExtendedBlockStorage   ebs;
+    /** The raw nibble array of the section metadata */
+    public final byte[]                 meta;
+
+    public SectionView(final Chunk c, final int sy, final ExtendedBlockStorage ebs)
+    {
+        this.c = c;
+        this.sy = sy;
+        this.ebs = ebs;
+        this.meta = ebs.getMetadataArray().data;
+    }
+
+    /** Whether the chunk still uses the storage this view was made for */
+    public boolean isCurrent()
+    {
+        return this.c.getBlockStorageArray()[this.sy] == this.ebs;
+    }
+
+    public Block getBlock(final int idx)
+    {
+        return this.ebs.getBlockByExtId(idx & 0xF, (idx >> 8) & 0xF, (idx >> 4) & 0xF);
+    }
+
+    public int getMeta(final int idx)
+    {
+        final int b = this.meta[idx >> 1];
+        return (idx & 1) == 0 ? b & 0xF : (b >> 4) & 0xF;
+    }
+
+    /** Writes the nibble, nothing else. Trusted callers only! */
+    public void setMeta(final int idx, final int m)
+    {
+        final int i = idx >> 1;
+        if ((idx & 1) == 0)
+            this.meta[i] = (byte) ((this.meta[i] & 0xF0) | (m & 0xF));
+        else
+            this.meta[i] = (byte) ((this.meta[i] & 0x0F) | ((m & 0xF) << 4));
+    }
+}
@@ -0,0 +1,216 @@
+package com.mcfht.realisticfluids;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.mcfht.realisticfluids.FluidData.ChunkData;
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
+
+/**
+ * Fluid sent into a chunk by the workers of other chunks, waiting for the
+ * chunk to take it in.
+ *
+ * <p>
+ * Flow across a chunk border used to write straight into the neighbour's
+ * fluidArray, which races with whoever is updating that chunk. Now the
+ * sender takes the fluid off its own cell and posts (cell, amount) here; the
+ * owner adds it at the start of its own step, and whatever is left over at
+ * the end of the sweep is added by the server thread. Posting is a
+ * compare-and-set on the head of a linked stack (many senders, one reader),
+ * so there are no locks.
+ *
+ * <p>
+ * If the cell has no room any more, or was filled in, the rest goes back to
+ * the sender the same way. Two full cells would pass it back and forth for
+ * ever, so after MAX_BOUNCES trips the chunk holding it keeps it: it is
+ * poured into free cells next to the target in that same chunk, and what
+ * still does not fit waits in the inbox for the next drain. Nobody ever
+ * writes to a chunk it does not own, and fluid is never thrown away.
+ *
+ * <p>
+ * A chunk that unloaded takes nothing in. What was sent to it goes back to
+ * the sender, or, if the sender is gone as well, waits in the dead inbox.
+ *
+ * @author FHT
+ */
+public class TransferInbox
+{
+    static final class Transfer
+    {
+        final int               x, y, z;
+        /** Where it came from, to send back what doesn't fit */
+        final int               fromX, fromZ;
+        final int               amount;
+        final BlockFiniteFluid  f;
+        /** Times it was sent back already */
+        final int               bounces;
+        Transfer                next;
+
+        Transfer(final int x, final int y, final int z, final int fromX, final int fromZ, final int amount, final BlockFiniteFluid f,
+                final int bounces)
+        {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.fromX = fromX;
+            this.fromZ = fromZ;
+            this.amount = amount;
+            this.f = f;
+            this.bounces = bounces;
+        }
+    }
+
+    /** Trips back and forth before the rest is poured out next to the target */
+    static final int                                MAX_BOUNCES = 4;
+    /** Cells around a target tried when it keeps bouncing, up last */
+    private static final int[][]                    SETTLE      = { { 1, 0, 0 }, { -1, 0, 0 }, { 0, 0, 1 }, { 0, 0, -1 }, { 0, 1, 0 } };
+
+    /** Chunks with something in their inbox */
+    static final ConcurrentLinkedQueue<ChunkData>   waiting     = new ConcurrentLinkedQueue<ChunkData>();
+    /** Fluid in transit, over all inboxes */
+    static final AtomicInteger                      inTransit   = new AtomicInteger(0);
+
+    private final AtomicReference<Transfer>         head        = new AtomicReference<Transfer>();
+
+    /**
+     * Sends amount of fluid f to the cell x, y, z of the chunk of data. The
+     * caller has already taken it off the cell at fromX, y, fromZ.
+     */
+    public static void post(final ChunkData data, final int x, final int y, final int z, final int fromX, final int fromZ, final int amount,
+            final BlockFiniteFluid f)
+    {
+        post(data, x, y, z, fromX, fromZ, amount, f, 0);
+    }
+
+    private static void post(final ChunkData data, final int x, final int y, final int z, final int fromX, final int fromZ, final int amount,
+            final BlockFiniteFluid f, final int bounces)
+    {
+        final Transfer t = new Transfer(x, y, z, fromX, fromZ, amount, f, bounces);
+        final AtomicReference<Transfer> head = data.inbox.head;
+        Transfer h;
+        do
+        {
+            h = head.get();
+            t.next = h;
+        } while (!head.compareAndSet(h, t));
+        inTransit.addAndGet(amount);
+        if (h == null)
+            waiting.add(data);
+        // Make sure the cell gets looked at
+        data.markUpdate(x & 0xF, y, z & 0xF);
+    }
+
+    public boolean isEmpty()
+    {
+        return this.head.get() == null;
+    }
+
+    /**
+     * Adds everything posted to data into its cells. Only the thread updating
+     * data may call this.
+     */
+    public static void drain(final ChunkData data)
+    {
+        Transfer t = data.inbox.head.getAndSet(null);
+        if (t == null)
+            return;
+        // Oldest first
+        Transfer prev = null;
+        while (t != null)
+        {
+            final Transfer next = t.next;
+            t.next = prev;
+            prev = t;
+            t = next;
+        }
+        final boolean dead = data.epoch < 0;
+        for (t = prev; t != null; t = t.next)
+        {
+            inTransit.addAndGet(-t.amount);
+            final int rest = dead ? t.amount : FluidData.addLevelWorld(data, t.f, t.x, t.y, t.z, t.amount);
+            if (rest <= 0)
+                continue;
+            if (t.bounces < MAX_BOUNCES || dead)
+            {
+                // Back where it came from
+                final ChunkData from = sender(data, t);
+                if (from != null)
+                {
+                    post(from, t.fromX, t.y, t.fromZ, t.x, t.z, rest, t.f, t.bounces + 1);
+                    continue;
+                }
+            }
+            if (dead)
+                // Nowhere to go, keep it with the dead data
+                keep(data, t, rest);
+            else
+                settle(data, t, rest);
+        }
+    }
+
+    /**
+     * The live data of the chunk t came from, or null if that chunk is not
+     * loaded (it is not loaded for it).
+     */
+    private static ChunkData sender(final ChunkData data, final Transfer t)
+    {
+        if (!data.w.getChunkProvider().chunkExists(t.fromX >> 4, t.fromZ >> 4))
+            return null;
+        final ChunkData from = FluidData.testCurrentChunkData(data, t.fromX, t.fromZ);
+        return from == null || from.epoch < 0 ? null : from;
+    }
+
+    /**
+     * Pours amount into free cells around the target of t that are in the
+     * chunk of data, sideways first. What does not fit is posted to data
+     * again and tried at its next drain.
+     */
+    private static void settle(final ChunkData data, final Transfer t, int amount)
+    {
+        for (int i = 0; i < SETTLE.length && amount > 0; i++)
+        {
+            final int x = t.x + SETTLE[i][0], y = t.y + SETTLE[i][1], z = t.z + SETTLE[i][2];
+            if (y < 0 || y > 255 || (x >> 4) != data.c.xPosition || (z >> 4) != data.c.zPosition)
+                continue;
+            amount = FluidData.addLevelWorld(data, t.f, x, y, z, amount);
+        }
+        if (amount > 0)
+            post(data, t.x, t.y, t.z, t.fromX, t.fromZ, amount, t.f, t.bounces);
+    }
+
+    /** Puts amount back in the inbox of dead data, without waking anything */
+    private static void keep(final ChunkData data, final Transfer t, final int amount)
+    {
+        final Transfer k = new Transfer(t.x, t.y, t.z, t.fromX, t.fromZ, amount, t.f, t.bounces);
+        final AtomicReference<Transfer> head = data.inbox.head;
+        Transfer h;
+        do
+        {
+            h = head.get();
+            k.next = h;
+        } while (!head.compareAndSet(h, k));
+        inTransit.addAndGet(amount);
+    }
+
+    /**
+     * Drains every inbox that still has something in it. Server thread, at
+     * the end of a sweep.
+     */
+    public static void drainAll()
+    {
+        // Returned fluid lands in other inboxes, only take what is there now
+        for (int n = waiting.size(); n > 0; n--)
+        {
+            final ChunkData data = waiting.poll();
+            if (data == null)
+                break;
+            drain(data);
+        }
+    }
+
+    public static int inTransit()
+    {
+        return inTransit.get();
+    }
+}
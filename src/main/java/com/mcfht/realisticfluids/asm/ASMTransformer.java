@@ -44,7 +44,7 @@ public class ASMTransformer implements net.minecraft.launchwrapper.IClassTransfo
 		new PatchTask("net.minecraft.block.Block", false, new PatchBlockRegistry()),
 		new PatchTask("aji", true, new PatchBlockRegistry()),
 		
-		//Patch the set block flags in doors and trapdoors (force throw block update)
+		//Wake fluid next to doors and trapdoors when they are toggled (see FluidWake)
 		new PatchTask("net.minecraft.block.BlockDoor", false, new PatchDoorUpdates()),
 		new PatchTask("net.minecraft.block.BlockTrapDoor", false, new PatchDoorUpdates()),
 		new PatchTask("akn", true, new PatchDoorUpdates()),
@@ -52,6 +52,16 @@ public class ASMTransformer implements net.minecraft.launchwrapper.IClassTransfo
 		
 		
 	};
+	
+	/** Tasks matched against the deobfuscated (transformed) name, so no obf mappings needed */
+	public static final PatchTask[] transformedTaskList = 
+	{
+		//Let falling blocks and pistons displace fluids (see FluidDisplacement)
+		new PatchTask("net.minecraft.entity.item.EntityFallingBlock", false, new PatchDisplacement()),
+		new PatchTask("net.minecraft.block.BlockPistonBase", false, new PatchDisplacement()),
+		//Keep fluid cell classes in step with every block write (see FluidData.onChunkWrite)
+		new PatchTask("net.minecraft.world.chunk.Chunk", false, new PatchChunkWrites()),
+	};
 
 	static class PatchTask
 	{
@@ -77,6 +87,13 @@ public class ASMTransformer implements net.minecraft.launchwrapper.IClassTransfo
 				classBytes = ((ASMPatchTask)t.patcher).startPatch(className, classBytes, t.obfuscated);
 			}
 		}
+		for (PatchTask t : transformedTaskList)
+		{
+			if (t.className.equals(arg1) && classBytes != null)
+			{
+				classBytes = ((ASMPatchTask)t.patcher).startPatch(arg1, classBytes, t.obfuscated);
+			}
+		}
 		return classBytes;
 	}
 }
@@ -0,0 +1,74 @@
+package com.mcfht.realisticfluids.asm;
+
+import java.util.Iterator;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Tells the fluid cell classes about every block write to a chunk, whoever
+ * makes it (vanilla, other mods, writes that skip neighbour updates), by
+ * calling FluidData.onChunkWrite at the top of Chunk.func_150807_a.
+ *
+ * <p>
+ * Runs after the FML deobfuscation transformer. func_150807_a has no MCP
+ * name, so it is the same in both environments.
+ */
+public class PatchChunkWrites implements ASMPatchTask{
+
+	public static final String hookOwner = "com/mcfht/realisticfluids/FluidData";
+	public static final String hookDesc = "(Lnet/minecraft/world/chunk/Chunk;IIILnet/minecraft/block/Block;)V";
+
+	public static final String setBlockName = "func_150807_a";
+	public static final String setBlockDesc = "(IIILnet/minecraft/block/Block;I)Z";
+
+	public static int patched = 0;
+
+	@Override
+	public ClassNode doPatch(String name, byte[] bytes, boolean obfuscated)
+	{
+		ClassNode classNode = new ClassNode();
+		ClassReader classReader = new ClassReader(bytes);
+		classReader.accept(classNode, 0);
+
+		Iterator<MethodNode> methods = classNode.methods.iterator();
+
+		while(methods.hasNext())
+		{
+			MethodNode m = methods.next();
+			if (!m.name.equals(setBlockName) || !m.desc.equals(setBlockDesc))
+				continue;
+
+			//onChunkWrite(this, x, y, z, block)
+			InsnList hook = new InsnList();
+			hook.add(new VarInsnNode(Opcodes.ALOAD, 0));
+			hook.add(new VarInsnNode(Opcodes.ILOAD, 1));
+			hook.add(new VarInsnNode(Opcodes.ILOAD, 2));
+			hook.add(new VarInsnNode(Opcodes.ILOAD, 3));
+			hook.add(new VarInsnNode(Opcodes.ALOAD, 4));
+			hook.add(new MethodInsnNode(Opcodes.INVOKESTATIC, hookOwner, "onChunkWrite", hookDesc));
+			m.instructions.insert(hook);
+			++patched;
+		}
+		return classNode;
+	}
+
+	@Override
+	public byte[] startPatch(String name, byte[] bytes, boolean obfuscated) {
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+		ClassNode c = doPatch(name, bytes, obfuscated);
+
+		if (c == null) return null;
+
+		c.accept(writer);
+		System.out.println("Patched chunk block writes in " + name + "!");
+		return writer.toByteArray();
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.mcfht.realisticfluids.asm;
+
+import java.util.Iterator;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Redirects the world writes of falling blocks and pistons through
+ * FluidDisplacement, so that fluids they replace get pushed out of the way.
+ *
+ * <p>
+ * Runs after the FML deobfuscation transformer, so members have MCP names in
+ * the dev environment and SRG names otherwise.
+ */
+public class PatchDisplacement implements ASMPatchTask{
+
+	public static final String hookOwner = "com/mcfht/realisticfluids/FluidDisplacement";
+	public static final String worldOwner = "net/minecraft/world/World";
+
+	public static final String setBlockDesc = "(IIILnet/minecraft/block/Block;II)Z";
+	public static final String setBlockToAirDesc = "(III)Z";
+	public static final String[] setBlockToAirNames = {"setBlockToAir", "func_147468_f"};
+
+	public static int patched = 0;
+
+	@Override
+	public ClassNode doPatch(String name, byte[] bytes, boolean obfuscated)
+	{
+		ClassNode classNode = new ClassNode();
+		ClassReader classReader = new ClassReader(bytes);
+		classReader.accept(classNode, 0);
+
+		Iterator<MethodNode> methods = classNode.methods.iterator();
+
+		while(methods.hasNext())
+		{
+			MethodNode m = methods.next();
+			Iterator<AbstractInsnNode> iter = m.instructions.iterator();
+			while (iter.hasNext())
+			{
+				AbstractInsnNode node0 = iter.next();
+				if (node0.getOpcode() != Opcodes.INVOKEVIRTUAL)
+					continue;
+				MethodInsnNode call = (MethodInsnNode) node0;
+				if (!call.owner.equals(worldOwner))
+					continue;
+
+				//Same stack layout, with the world as the first argument
+				if (call.desc.equals(setBlockDesc))
+				{
+					m.instructions.set(call, new MethodInsnNode(Opcodes.INVOKESTATIC, hookOwner, "setBlock",
+							"(Lnet/minecraft/world/World;IIILnet/minecraft/block/Block;II)Z"));
+					++patched;
+				}
+				else if (call.desc.equals(setBlockToAirDesc) && isSetBlockToAir(call.name))
+				{
+					m.instructions.set(call, new MethodInsnNode(Opcodes.INVOKESTATIC, hookOwner, "setBlockToAir",
+							"(Lnet/minecraft/world/World;III)Z"));
+					++patched;
+				}
+			}
+		}
+		return classNode;
+	}
+
+	private static boolean isSetBlockToAir(String name)
+	{
+		for (String s : setBlockToAirNames)
+			if (s.equals(name))
+				return true;
+		return false;
+	}
+
+	@Override
+	public byte[] startPatch(String name, byte[] bytes, boolean obfuscated) {
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+		ClassNode c = doPatch(name, bytes, obfuscated);
+
+		if (c == null) return null;
+
+		c.accept(writer);
+		System.out.println("Patched fluid displacement in " + name + "!");
+		return writer.toByteArray();
+	}
+
+}
@@ -4,58 +4,74 @@ import java.util.Iterator;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 
+/**
+ * Redirects the metadata writes of doors and trapdoors through FluidWake,
+ * which wakes only the fluid next to the door instead of making every toggle
+ * throw full block updates.
+ */
 public class PatchDoorUpdates implements ASMPatchTask{
 
-	public ClassNode doPatch(String name, byte[] bytes, boolean obfuscated) 
+	public static final String hookOwner = "com/mcfht/realisticfluids/FluidWake";
+	public static final String worldOwner = "net/minecraft/world/World";
+
+	public static final String setMetaDesc = "(IIIII)Z";
+	public static final String[] setMetaNames = {"setBlockMetadataWithNotify", "func_72921_c"};
+
+	public ClassNode doPatch(String name, byte[] bytes, boolean obfuscated)
 	{
 		ClassNode classNode = new ClassNode();
 		ClassReader classReader = new ClassReader(bytes);
 		classReader.accept(classNode, 0);
-		
+
 		Iterator<MethodNode> methods = classNode.methods.iterator();
-		
+
 		while(methods.hasNext())
 		{
 			MethodNode m = methods.next();
-			AbstractInsnNode node0 = null;
 			Iterator<AbstractInsnNode> iter = m.instructions.iterator();
-			int index = -1;
 			while (iter.hasNext())
 			{
-				index++;
-				node0 = iter.next();
-				if (node0.getOpcode() == org.objectweb.asm.Opcodes.ICONST_2 && iter.hasNext())
+				AbstractInsnNode node0 = iter.next();
+				if (node0.getOpcode() != Opcodes.INVOKEVIRTUAL)
+					continue;
+				MethodInsnNode call = (MethodInsnNode) node0;
+				if (call.owner.equals(worldOwner) && call.desc.equals(setMetaDesc) && isSetMeta(call.name))
 				{
-					index++;
-					if (iter.next().getOpcode()  == org.objectweb.asm.Opcodes.INVOKEVIRTUAL)
-					{
-						m.instructions.set(node0, new InsnNode(org.objectweb.asm.Opcodes.ICONST_3));
-						continue;
-					}
+					m.instructions.set(call, new MethodInsnNode(Opcodes.INVOKESTATIC, hookOwner, "setBlockMetadataWithNotify",
+							"(Lnet/minecraft/world/World;IIIII)Z"));
 				}
 			}
-			
+
 		}
 		return classNode;
 	}
 
+	private static boolean isSetMeta(String name)
+	{
+		for (String s : setMetaNames)
+			if (s.equals(name))
+				return true;
+		return false;
+	}
+
 	@Override
 	public byte[] startPatch(String name, byte[] bytes, boolean obfuscated) {
 		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
 		ClassNode c = doPatch(name, bytes, obfuscated);
-		
+
 		if (c == null) return null;
-		
+
 		c.accept(writer);
 		return writer.toByteArray();
 	}
-	
-	
-	
-	
+
+
+
+
 }
@@ -0,0 +1,53 @@
+/**
+ *
+ */
+package com.mcfht.realisticfluids.commands;
+
+import com.mcfht.realisticfluids.RealisticFluids;
+
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.world.World;
+
+/**
+ * Prints the internal gauges of the fluid engine.
+ *
+ * @author Keybounce
+ *
+ */
+public class CommandFluidStats extends CommandBase
+{
+    @Override
+    public String getCommandName()
+    {
+        return "rff-stats";
+    }
+
+    @Override
+    public String getCommandUsage(ICommandSender p_71518_1_)
+    {
+        // Fixme needs localizaion
+        return "rff-stats";
+    }
+
+    @Override
+    public void processCommand(ICommandSender sender, String[] args)
+    {
+        World world = sender.getEntityWorld();
+
+        if (!world.isRemote)
+        {
+            for (String line : RealisticFluids.getStats())
+                sender.addChatMessage(new ChatComponentText(line));
+        }
+    }
+
+    /**
+     * Return the required permission level for this command.
+     */
+    public int getRequiredPermissionLevel()
+    {
+        return 2;
+    }
+}
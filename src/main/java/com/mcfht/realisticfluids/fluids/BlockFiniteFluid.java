@@ -4,18 +4,21 @@ import java.util.Random;
 
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockDynamicLiquid;
-import net.minecraft.block.BlockFalling;
-import net.minecraft.block.BlockPistonBase;
 import net.minecraft.block.material.Material;
 import net.minecraft.entity.Entity;
-import net.minecraft.entity.item.EntityFallingBlock;
 import net.minecraft.entity.passive.EntityWaterMob;
 import net.minecraft.init.Blocks;
 import net.minecraft.util.Vec3;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
 
+import com.mcfht.realisticfluids.FluidBehaviour;
 import com.mcfht.realisticfluids.FluidData;
+import com.mcfht.realisticfluids.FluidDisplacement;
+import com.mcfht.realisticfluids.FluidFall;
+import com.mcfht.realisticfluids.FluidRandom;
+import com.mcfht.realisticfluids.FluidTimingWheel;
+import com.mcfht.realisticfluids.TransferInbox;
 import com.mcfht.realisticfluids.FluidData.ChunkData;
 import com.mcfht.realisticfluids.RealisticFluids;
 import com.mcfht.realisticfluids.Util;
@@ -37,6 +40,8 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
     public int			flowRate;
     /** Amount of fluid needed to break things */
     public final int	flowBreak	= RealisticFluids.MAX_FLUID >> 3;
+    /** Our own cell class, see FluidData.classify */
+    public final int	cellClass;
 
     // Debug!
     static int minwater = RealisticFluids.MAX_FLUID;
@@ -63,6 +68,7 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
         this.viscosity = (RealisticFluids.MAX_FLUID >> runniness);
         this.setTickRandomly(true); // Because who cares, you know?
         this.flowRate = flowRate;
+        this.cellClass = material == Material.lava ? FluidData.CLASS_LAVA : FluidData.CLASS_WATER;
         this.canBlockGrass = true; // 4Head had this false, so grass was growing under water
     }
 
@@ -83,13 +89,17 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
 
         super.onBlockAdded(w, x, y, z);
         Block b1 = w.getBlock(x, y, z);
+        FluidData.getChunkData(w.getChunkFromChunkCoords(x >> 4, z >> 4)).setCellClass(x & 0xF, y, z & 0xF, b1);
         if (b1 == this)
         {
             // Make sure it's the non-flowing version
             b1 = FluidData.convertFlowingStill(b1, RealisticFluids.MAX_FLUID);
             RealisticFluids.markBlockForUpdate(w, x, y, z);
-            FluidData.setLevelWorld(FluidData.getChunkData(w.getChunkFromChunkCoords(x >> 4, z >> 4)),
-                                (BlockFiniteFluid) b1, x, y, z, RealisticFluids.MAX_FLUID, true);
+            final ChunkData data = FluidData.getChunkData(w.getChunkFromChunkCoords(x >> 4, z >> 4));
+            FluidData.setLevelWorld(data, (BlockFiniteFluid) b1, x, y, z, RealisticFluids.MAX_FLUID, true);
+            // Buckets poured into a lake
+            if (RealisticFluids.BODY_INDEX)
+                FluidData.worldCache.get(w).bodies.disturb(data, this, x, y, z);
         }
 
     }
@@ -98,6 +108,7 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
     public void onNeighborBlockChange(final World w, final int x, final int y, final int z, final Block b)
     {
         // if (!isSameFluid(this, b))
+        FluidData.refreshNeighborClasses(FluidData.getChunkData(w.getChunkFromChunkCoords(x >> 4, z >> 4)), x, y, z);
         RealisticFluids.markBlockForUpdate(w, x, y, z);
     }
 
@@ -112,18 +123,16 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
         final ChunkData data = FluidData.getChunkData(w.getChunkFromChunkCoords(x >> 4, z >> 4));
         try
         {
-            if (!(b1 instanceof BlockFiniteFluid))
-            {
-                // Extreme hacks?
-                final StackTraceElement[] stack = Thread.currentThread().getStackTrace();
-                if (b1 == Blocks.piston_extension
-                        || (b1 instanceof BlockFalling && stack[4].getClassName().equals(EntityFallingBlock.class.getName()))
-                        || (stack[5].getClassName().equals(BlockPistonBase.class.getName())))
-                    this.displace(data, x, y, z, m, 32);
-            }
+            // Falling blocks and pistons flag their writes through FluidDisplacement
+            if (!(b1 instanceof BlockFiniteFluid) && (b1 == Blocks.piston_extension || FluidDisplacement.consume(w, x, y, z)))
+                this.displace(data, x, y, z, m, 32);
         } finally
         {
             data.setLevel(x & 0xF, y, z & 0xF, 0);
+            data.setCellClass(x & 0xF, y, z & 0xF, b1);
+            // Buckets and blocks taking fluid from a lake
+            if (RealisticFluids.BODY_INDEX && !(b1 instanceof BlockFiniteFluid))
+                FluidData.worldCache.get(w).bodies.disturb(data, this, x, y, z);
         }
 
     }
@@ -131,7 +140,11 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
     @Override
     public void updateTick(final World w, final int x, final int y, final int z, final Random rand)
     {
-        if (RealisticFluids.FlowEnabled)
+        // Random ticks don't wake settled water, or chunks collapsed far away
+        if (!RealisticFluids.FlowEnabled)
+            return;
+        final ChunkData data = FluidData.getChunkData(w.getChunkFromChunkCoords(x >> 4, z >> 4));
+        if (!data.frozen[y >> 4] && data.lod == null)
             RealisticFluids.markBlockForUpdate(w, x, y, z);
     }
 
@@ -143,17 +156,40 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
     {
         return this.flowRate;
     }
+    /**
+     * Whether this fluid flows in the sweep with the given interval. Slow
+     * fluids (lava) only flow every few sweeps.
+     */
+    public boolean isDue(final World w, final int interval)
+    {
+        return this.flowRate == 1 || RealisticFluids.tickCounter() % (RealisticFluids.GLOBAL_RATE * this.getFlowRate(w)) == interval;
+    }
+    /**
+     * Ticks until the next sweep this fluid flows in, at least 1.
+     */
+    public int ticksUntilDue(final World w)
+    {
+        final int g = RealisticFluids.GLOBAL_RATE, p = g * this.getFlowRate(w);
+        final int t = RealisticFluids.tickCounter() % p;
+        return t < g ? 1 : p - t;
+    }
     public void doUpdate(ChunkData data, final int x0, final int y0, final int z0, final Random r, final int interval)
     {
-        if (this.flowRate != 1 && RealisticFluids.tickCounter() % (RealisticFluids.GLOBAL_RATE * this.getFlowRate(data.w)) != interval)
+        if (!this.isDue(data.w, interval))
         {
             // Mark ourselves for later
-            RealisticFluids.markBlockForUpdate(data.w, x0, y0, z0);
+            if (RealisticFluids.TIMING_WHEEL)
+                FluidTimingWheel.schedule(data.w, x0, y0, z0, RealisticFluids.tickCounter() + this.ticksUntilDue(data.w));
+            else
+                RealisticFluids.markBlockForUpdate(data.w, x0, y0, z0);
             return;
         }
 
         data = FluidData.forceCurrentChunkData(data, x0, z0);
         int l0 = FluidData.getLevel(data, this, x0 & 0xF, y0, z0 & 0xF);
+        // Long drops land in one step
+        if (RealisticFluids.FAST_FALL && FluidFall.tryFall(data, this, x0, y0, z0, l0))
+            return;
         int l1=l0;  // Normally reset below. But if y0=0, this is needed.
         final int _l0 = l0;
         try
@@ -297,8 +333,15 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
                                 l0 -= flow;
                                 // This is update reduction number 1. set Level would normally mark all neighbors.
                                 // We don't want to notify the block under us.
-                                FluidData.setLevel(data, this, x1 & 0xF, z1 & 0xF, x1, y0, z1, l1 + flow, false);
-                                FluidData.markNeighborsHorizontal(data, x1, y0, z1);
+                                if (RealisticFluids.TRANSFER_INBOX && isOtherChunk(x0, z0, x1, z1))
+                                    // Another chunk (maybe through a fence), let its owner add it
+                                    TransferInbox.post(data, x1, y0, z1, x0, z0, flow, this);
+                                else
+                                {
+                                    FluidData.setLevel(data, this, x1 & 0xF, z1 & 0xF, x1, y0, z1, l1 + flow, false);
+                                    if (FluidData.isFrontierChange(l1, l1 + flow))
+                                        FluidData.markNeighborsHorizontal(data, x1, y0, z1);
+                                }
                                 if (l0 < (efVisc >> 2))
                                 {
                                     data = FluidData.forceCurrentChunkData(data, x0, z0);
@@ -310,12 +353,18 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
                     } else // Prevent water from getting stuck on ledges
                     if (FluidData.getLevel(data, this, x0 & 0xF, y0 - 1, z0 & 0xF) == 0)
                     {
-                        final Block b2 = data.c.getBlock(x1 & 0xF, y0 - 1, z1 & 0xF);
-                        if ((data.w.isAirBlock(x1, y0, z1) /* b1 */ || (l1 > 0 && l1 + l0 < RealisticFluids.MAX_FLUID))
-                                && (/* b2 */ data.w.isAirBlock(x1, y0-1, z0) || b2.getMaterial() == this.blockMaterial))
+                        final int c2 = FluidData.getCellClassWorld(data, x1, y0 - 1, z1);
+                        if ((FluidData.getCellClassWorld(data, x1, y0, z1) == FluidData.CLASS_AIR /* b1 */ || (l1 > 0 && l1 + l0 < RealisticFluids.MAX_FLUID))
+                                && (/* b2 */ FluidData.getCellClassWorld(data, x1, y0 - 1, z0) == FluidData.CLASS_AIR || c2 == this.cellClass
+                                        || (c2 == FluidData.CLASS_MOD_FLUID && data.w.getBlock(x1, y0 - 1, z1).getMaterial() == this.blockMaterial)))
                         {
-                            FluidData.setLevelWorld(data, this, x1, y0, z1, l1 + l0, true);
-                            FluidData.markNeighbors(data, x1, y0, z1);
+                            if (RealisticFluids.TRANSFER_INBOX && isOtherChunk(x0, z0, x1, z1))
+                                TransferInbox.post(data, x1, y0, z1, x0, z0, l0, this);
+                            else
+                            {
+                                FluidData.setLevelWorld(data, this, x1, y0, z1, l1 + l0, true);
+                                FluidData.markNeighbors(data, x1, y0, z1);
+                            }
                             l0 = 0;
                             return;
                         }
@@ -335,6 +384,12 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
         }
     }
 
+    /** True if x1, z1 is in another chunk than x0, z0 */
+    private static boolean isOtherChunk(final int x0, final int z0, final int x1, final int z1)
+    {
+        return (x1 >> 4) != (x0 >> 4) || (z1 >> 4) != (z0 >> 4);
+    }
+
     private int adjustMinFluid(int currentMin, String string, int test)
     {
         if (test < 5)
@@ -348,8 +403,8 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
 
     public boolean doDoubleFlow(final ChunkData data, final int x0, final int y0, final int z0, final int x1, final int y1, final int z1)
     {
-        final Block b1 = data.w.getBlock(x1, y1, z1);
-        if (data.w.isAirBlock(x1, y1, z1) || Util.isSameFluid(this, b1))
+        final int c1 = FluidData.getCellClassWorld(data, x1, y1, z1);
+        if (c1 == FluidData.CLASS_AIR || c1 == this.cellClass)
         {
             data.markUpdate(x0 & 0xF, y0, z0 & 0xF);
             return true;
@@ -368,31 +423,35 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
     public byte checkFlow(ChunkData data, final int x0, final int y0, final int z0, final int dx, final int dy, final int dz,
             final Block b1, final int m, final int l0)
     {
-        if (b1 == Blocks.air
-            ||  Util.isSameFluid(this, b1)   // Old: Same finite fluid
+        final int x1 = x0 + dx;
+        final int y1 = y0 + dy;
+        final int z1 = z0 + dz;
+        // final int xN = x1 + dx; final int yN = y1 + dy; final int zN = z1 +
+        // dz;
+
+        final int c1 = FluidData.getCellClassWorld(data, x1, y1, z1);
+        if (c1 == FluidData.CLASS_AIR
+            ||  c1 == this.cellClass   // Old: Same finite fluid
             )
             return 1;
-        if (   this.getMaterial() == b1.getMaterial()  // New: Same type of (possibly mod) fluid.
+        // Nothing below can happen to a solid block
+        if (c1 == FluidData.CLASS_SOLID)
+            return 0;
+        if (   c1 == FluidData.CLASS_MOD_FLUID
                     && (-1 == dy)                           // and we are going down
+                    && FluidBehaviour.isSink(this, b1)      // Same type of mod fluid
            )
-            if (                   Block.getIdFromBlock(b1) >12    // and it's a mod fluid
-                    )
             if (FluidData.getLevelWorld(data, this, x0, y0, z0) < RealisticFluids.ABSORB)
             {
                 System.out.println("Absorbing fluid in mod liquid at " + x0 + ", " + y0 + ", " + z0);
                 return 1;
             }
             // TODO: Need to test ledges. We have access to the dynamic adjustments, use them.
-        final int x1 = x0 + dx;
-        final int y1 = y0 + dy;
-        final int z1 = z0 + dz;
-        // final int xN = x1 + dx; final int yN = y1 + dy; final int zN = z1 +
-        // dz;
 
         // First check for fences;
         if (dx == 0 || dz == 0)
             // We can flow through fences
-            if ((b1 == Blocks.fence || b1 == Blocks.nether_brick_fence || b1 == Blocks.iron_bars))
+            if (c1 == FluidData.CLASS_PASSABLE)
                 return (byte) (this.doDoubleFlow(data, x0, y0, z0, x1 + dx, y1 + dy, z1 + dz) ? 2 : 0);
 
         // BreakInteraction should now mimic vanilla perfectly.
@@ -401,7 +460,7 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
             return temp;
 
         // The other block is a different fluid
-        if (b1 instanceof BlockFiniteFluid && b1.getMaterial() != this.blockMaterial)
+        if (c1 == FluidData.CLASS_WATER || c1 == FluidData.CLASS_LAVA)
         {
             data = FluidData.forceCurrentChunkData(data, x1, z1);
             final int level1 = FluidData.getLevel(data, this, x1 & 0xF, y1, z1 & 0xF);
@@ -437,7 +496,7 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
 
     public boolean canBreak(World w, int x, int y, int z)
     {
-        return func_149809_q(w, x, y, z);
+        return FluidBehaviour.canBreak(this, w.getBlock(x, y, z));
     }
     
     // Non-private version of Mojang's code.
@@ -543,7 +602,7 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
             l0 = (8 - m) * (RealisticFluids.MAX_FLUID >> 3);
 
         // Try to set content of above and neighboring blocks
-        final int skew = data.w.rand.nextInt(4);
+        final int skew = FluidRandom.get().nextInt(4);
 
         b1 = data.c.getBlock(x & 0xF, y + 1, z & 0xF); // Check the block above
         // If it is not a liquid, try moving the blocks to the sides
@@ -557,23 +616,20 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
                 final Block bN = data.c.getBlock(x1 & 0xF, y, z1 & 0xF);
                 if (data.w.isAirBlock(x1, y, z1))
                 {
-                    FluidData.setLevelWorld(data, this, x1, y, z1, l0, true);
-                    l0 = 0;
-                    return;
+                    // Another worker may be filling it too, add rather than set
+                    l0 = FluidData.addLevelWorld(data, this, x1, y, z1, l0);
+                    if (l0 <= 0)
+                        return;
                 } else if (Util.isSameFluid(this, bN))
                 {
-                    final int l1 = FluidData.getLevel(data, this, x1 & 0xF, y, z1 & 0xF);
+                    // The neighbour may be across a chunk border, add atomically
                     final int move = l0 >> 1;
-                    FluidData.setLevelWorld(data, this, x1, y, z1, l1 + move, true);
-                    l0 += l1 + move - RealisticFluids.MAX_FLUID;
+                    l0 -= move - FluidData.addLevelWorld(data, this, x1, y, z1, move);
                 }
             }
             data = FluidData.forceCurrentChunkData(data, x, z);
             if (l0 > 0 && b1 == Blocks.air)
-            {
-                FluidData.setLevelWorld(data, this, x, y + 1, z, l0, true);
-                l0 = 0;
-            }
+                l0 = FluidData.addLevelWorld(data, this, x, y + 1, z, l0);
             return; // We can't go up or across any further, so exit
         }
         // There is fluid above, so just move to the top and put it there
@@ -581,18 +637,9 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
         {
             b1 = data.w.getBlock(x, y + i, z);
             // There is fluid above, so move as much content as we can
-            if (b1 == Blocks.air)
-            {
-                FluidData.setLevelWorld(data, this, x, y + i, z, l0, true);
-                l0 = 0;
-            } else if (Util.isSameFluid(this, b1))
+            if (b1 == Blocks.air || Util.isSameFluid(this, b1))
             {
-                final int l1 = FluidData.getLevel(data, this, x & 0xF, y + i, z & 0xF);
-                if (l1 < RealisticFluids.MAX_FLUID)
-                {
-                    FluidData.setLevelWorld(data, this, x, y + i, z, l1 + l0, true);
-                    l0 += l1 - RealisticFluids.MAX_FLUID;
-                }
+                l0 = FluidData.addLevelWorld(data, this, x, y + i, z, l0);
                 continue;
             } else
                 break;
@@ -605,7 +652,7 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
             final int x1, final int y1, final int z1)
     {
         // Check for torches, plants, etc. similar to vanilla water
-        if (this.canBreak(w, x1, y1, z1))
+        if (FluidBehaviour.canBreak(this, b1))
         {
             if (y0 - y1 < 0 || l0 > this.flowBreak)
             {
@@ -640,27 +687,27 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
         {
             if (ll > (RealisticFluids.MAX_FLUID - (RealisticFluids.MAX_FLUID / 3)))
             {
-                FluidData.setLevelWorld(data, (BlockFiniteFluid) Blocks.flowing_water, xw, yw, zw, 0, true);
-                FluidData.setLevelWorld(data1, (BlockFiniteFluid) Blocks.flowing_lava, xl, yl, zl, 0, true);
+                empty(data, (BlockFiniteFluid) Blocks.flowing_water, xw, yw, zw);
+                empty(data1, (BlockFiniteFluid) Blocks.flowing_lava, xl, yl, zl);
                 RealisticFluids.setBlock(data.w, xw, yw, zw, Blocks.obsidian, 0, 3, true);
                 return;
             } else
             {
-                FluidData.setLevelWorld(data, (BlockFiniteFluid) Blocks.flowing_water, xw, yw, zw, 0, true);
-                FluidData.setLevelWorld(data1, (BlockFiniteFluid) Blocks.flowing_lava, xl, yl, zl, 0, true);
+                empty(data, (BlockFiniteFluid) Blocks.flowing_water, xw, yw, zw);
+                empty(data1, (BlockFiniteFluid) Blocks.flowing_lava, xl, yl, zl);
                 RealisticFluids.setBlock(data.w, xw, yw, zw, Blocks.stone, 0, 3, true);
                 return;
             }
         } else if (ll > (RealisticFluids.MAX_FLUID - (RealisticFluids.MAX_FLUID / 3)))
         {
-            FluidData.setLevelWorld(data, (BlockFiniteFluid) Blocks.flowing_water, xw, yw, zw, 0, true);
-            FluidData.setLevelWorld(data1, (BlockFiniteFluid) Blocks.flowing_lava, xl, yl, zl, 0, true);
+            empty(data, (BlockFiniteFluid) Blocks.flowing_water, xw, yw, zw);
+            empty(data1, (BlockFiniteFluid) Blocks.flowing_lava, xl, yl, zl);
             RealisticFluids.setBlock(data.w, xl, yl, zl, Blocks.obsidian, 0, 3, true);
             return;
         } else
         {
-            FluidData.setLevelWorld(data, (BlockFiniteFluid) Blocks.flowing_water, xw, yw, zw, 0, true);
-            FluidData.setLevelWorld(data1, (BlockFiniteFluid) Blocks.flowing_lava, xl, yl, zl, 0, true);
+            empty(data, (BlockFiniteFluid) Blocks.flowing_water, xw, yw, zw);
+            empty(data1, (BlockFiniteFluid) Blocks.flowing_lava, xl, yl, zl);
             RealisticFluids.setBlock(data.w, xl, yl, zl, Blocks.cobblestone, 0, 3, true);
             return;
         }
@@ -671,6 +718,15 @@ public class BlockFiniteFluid extends BlockDynamicLiquid
         // Blocks.flowing_lava, xl, yl, zl, ll - (3 * lw) / 2, false);
     }
 
+    /**
+     * Takes all of f out of a cell, whatever another worker may have added
+     * to it since it was read. The lava may be in a neighbouring chunk.
+     */
+    private static void empty(final ChunkData data, final BlockFiniteFluid f, final int x, final int y, final int z)
+    {
+        FluidData.addLevelWorld(data, f, x, y, z, -RealisticFluids.MAX_FLUID);
+    }
+
     // Because bad stuff seems to be happening when these methods are not
     // present... they should be inherited, but apparently not D:
     @Override
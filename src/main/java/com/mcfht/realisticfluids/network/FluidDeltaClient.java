@@ -0,0 +1,137 @@
+package com.mcfht.realisticfluids.network;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import com.mcfht.realisticfluids.fluids.BlockFiniteFluid;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.ClientTickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+/**
+ * Applies fluid delta packets straight into the client's chunk storage.
+ *
+ * <p>
+ * Packet handlers run on the network thread, so they only decode the packet
+ * and queue it here; the client tick applies the queue on the client thread,
+ * where chunk storage and the renderer expect to be changed.
+ *
+ * @author FHT
+ */
+@SideOnly(Side.CLIENT)
+public class FluidDeltaClient
+{
+    /** A decoded packet waiting for the client thread */
+    static class Delta
+    {
+        final int       chunkX, chunkZ;
+        final int       sectionMask;
+        final byte[]    raw;
+
+        Delta(final FluidDeltaPacket p, final byte[] raw)
+        {
+            this.chunkX = p.chunkX;
+            this.chunkZ = p.chunkZ;
+            this.sectionMask = p.sectionMask;
+            this.raw = raw;
+        }
+    }
+
+    private static final ConcurrentLinkedQueue<Delta> queue = new ConcurrentLinkedQueue<Delta>();
+
+    /** Decodes a packet and queues it for the client thread. Network thread */
+    public static void enqueue(final FluidDeltaPacket p)
+    {
+        final byte[] raw = p.getRaw();
+        if (raw != null)
+            queue.add(new Delta(p, raw));
+    }
+
+    @SubscribeEvent
+    public void clientTick(final ClientTickEvent event)
+    {
+        if (event.phase != Phase.START)
+            return;
+        final World w = Minecraft.getMinecraft().theWorld;
+        Delta d;
+        while ((d = queue.poll()) != null)
+            if (w != null)
+                apply(w, d);
+    }
+
+    static void apply(final World w, final Delta p)
+    {
+        if (!w.getChunkProvider().chunkExists(p.chunkX, p.chunkZ))
+            return;
+        final byte[] raw = p.raw;
+
+        final Chunk c = w.getChunkFromChunkCoords(p.chunkX, p.chunkZ);
+        final ExtendedBlockStorage[] storage = c.getBlockStorageArray();
+        int pos = 0;
+
+        for (int i = 0; i < 16; i++)
+        {
+            if ((p.sectionMask & (1 << i)) == 0)
+                continue;
+            final ExtendedBlockStorage ebs = storage[i];
+            final byte mode = raw[pos++];
+
+            if (mode == FluidDeltaPacket.SPARSE)
+            {
+                final int count = ((raw[pos] & 0xFF) << 8) | (raw[pos + 1] & 0xFF);
+                pos += 2;
+                for (int k = 0; k < count; k++, pos += 2)
+                {
+                    final int v = ((raw[pos] & 0xFF) << 8) | (raw[pos + 1] & 0xFF);
+                    setMeta(ebs, v >> 3, v & 0x7);
+                }
+            } else
+            {
+                final long[] mask = new long[64];
+                for (int k = 0; k < 64; k++)
+                {
+                    long l = 0;
+                    for (int b = 0; b < 8; b++)
+                        l = (l << 8) | (raw[pos++] & 0xFF);
+                    mask[k] = l;
+                }
+                // 3-bit values, LSB first
+                int bit = pos << 3;
+                int count = 0;
+                for (int idx = 0; idx < 4096; idx++)
+                {
+                    if ((mask[idx >> 6] & (1L << (idx & 63))) == 0)
+                        continue;
+                    int v = 0;
+                    for (int b = 0; b < 3; b++, bit++)
+                        v |= ((raw[bit >> 3] >> (bit & 7)) & 1) << b;
+                    setMeta(ebs, idx, v);
+                    count++;
+                }
+                pos += (count * 3 + 7) >> 3;
+            }
+
+            final int x0 = p.chunkX << 4, y0 = i << 4, z0 = p.chunkZ << 4;
+            w.markBlockRangeForRenderUpdate(x0, y0, z0, x0 + 15, y0 + 15, z0 + 15);
+        }
+    }
+
+    /** Cell index is x + z*16 + y*256, value is eighths-1 */
+    private static void setMeta(final ExtendedBlockStorage ebs, final int idx, final int value)
+    {
+        if (ebs == null)
+            return;
+        final int x = idx & 0xF, y = (idx >> 8) & 0xF, z = (idx >> 4) & 0xF;
+        // Never write fluid meta into something the client thinks is solid
+        if (!(ebs.getBlockByExtId(x, y, z) instanceof BlockFiniteFluid))
+            return;
+        ebs.setExtBlockMetadata(x, y, z, 7 - value);
+    }
+}
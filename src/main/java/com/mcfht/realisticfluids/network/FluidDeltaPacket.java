@@ -0,0 +1,144 @@
+package com.mcfht.realisticfluids.network;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import cpw.mods.fml.common.network.simpleimpl.IMessage;
+import cpw.mods.fml.common.network.simpleimpl.IMessageHandler;
+import cpw.mods.fml.common.network.simpleimpl.MessageContext;
+
+/**
+ * Server to client packet carrying the fluid level changes of one chunk.
+ *
+ * <p>
+ * Payload layout, per changed section (sections flagged in sectionMask):
+ * <ul>
+ * <li>1 byte mode. SPARSE: short count, then one short per cell,
+ * (cellIndex << 3 | eighths-1). DENSE: 64 longs of changed-cell bitmask, then
+ * the 3-bit (eighths-1) values of every set bit, packed LSB first.
+ * </ul>
+ * Falling fluid (meta 8 and up) is never in a delta, it goes out as a
+ * normal block update.
+ * The whole payload is deflated when it is larger than {@link #DEFLATE_OVER}.
+ *
+ * @author FHT
+ */
+public class FluidDeltaPacket implements IMessage
+{
+    public static final byte    SPARSE          = 0;
+    public static final byte    DENSE           = 1;
+    /** Raw payloads smaller than this go out uncompressed */
+    public static final int     DEFLATE_OVER    = 1024;
+    /** Above this many cells, the bitmask is cheaper than a list of shorts */
+    public static final int     DENSE_OVER      = 312;
+
+    public int      chunkX;
+    public int      chunkZ;
+    public int      sectionMask;
+    /** Raw (inflated) payload length */
+    public int      rawLength;
+    public boolean  deflated;
+    public byte[]   payload;
+
+    public FluidDeltaPacket()
+    {
+    }
+
+    public FluidDeltaPacket(final int chunkX, final int chunkZ, final int sectionMask, final byte[] raw, final int rawLength)
+    {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.sectionMask = sectionMask;
+        this.rawLength = rawLength;
+        this.payload = raw;
+        this.deflated = false;
+
+        if (rawLength > DEFLATE_OVER)
+        {
+            final Deflater d = new Deflater(Deflater.BEST_SPEED);
+            d.setInput(raw, 0, rawLength);
+            d.finish();
+            final byte[] out = new byte[rawLength];
+            final int n = d.deflate(out);
+            // Only keep it if it actually helped
+            if (d.finished() && n < rawLength)
+            {
+                this.payload = new byte[n];
+                System.arraycopy(out, 0, this.payload, 0, n);
+                this.deflated = true;
+            }
+            d.end();
+        }
+        if (!this.deflated && this.payload.length != rawLength)
+        {
+            final byte[] trimmed = new byte[rawLength];
+            System.arraycopy(raw, 0, trimmed, 0, rawLength);
+            this.payload = trimmed;
+        }
+    }
+
+    /** Returns the inflated payload, or null if it is corrupt. */
+    public byte[] getRaw()
+    {
+        if (!this.deflated)
+            return this.payload;
+        final Inflater inf = new Inflater();
+        try
+        {
+            inf.setInput(this.payload);
+            final byte[] out = new byte[this.rawLength];
+            final int n = inf.inflate(out);
+            return n == this.rawLength ? out : null;
+        } catch (final DataFormatException e)
+        {
+            System.err.println("Corrupt fluid delta packet for chunk " + this.chunkX + ", " + this.chunkZ);
+            return null;
+        } finally
+        {
+            inf.end();
+        }
+    }
+
+    @Override
+    public void fromBytes(final ByteBuf buf)
+    {
+        this.chunkX = buf.readInt();
+        this.chunkZ = buf.readInt();
+        this.sectionMask = buf.readUnsignedShort();
+        this.deflated = buf.readBoolean();
+        this.rawLength = buf.readInt();
+        this.payload = new byte[buf.readInt()];
+        buf.readBytes(this.payload);
+    }
+
+    @Override
+    public void toBytes(final ByteBuf buf)
+    {
+        buf.writeInt(this.chunkX);
+        buf.writeInt(this.chunkZ);
+        buf.writeShort(this.sectionMask);
+        buf.writeBoolean(this.deflated);
+        buf.writeInt(this.rawLength);
+        buf.writeInt(this.payload.length);
+        buf.writeBytes(this.payload);
+    }
+
+    /**
+     * Client side handler, on the network thread. Everything that touches
+     * client classes lives in {@link FluidDeltaClient}, so that this class
+     * loads on a dedicated server.
+     */
+    public static class Handler implements IMessageHandler<FluidDeltaPacket, IMessage>
+    {
+        @Override
+        public IMessage onMessage(final FluidDeltaPacket message, final MessageContext ctx)
+        {
+            if (ctx.side.isClient())
+                FluidDeltaClient.enqueue(message);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.mcfht.realisticfluids.network;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import com.mcfht.realisticfluids.FluidData.ChunkData;
+
+import cpw.mods.fml.common.FMLCommonHandler;
+import cpw.mods.fml.common.network.NetworkRegistry;
+import cpw.mods.fml.common.network.simpleimpl.SimpleNetworkWrapper;
+import cpw.mods.fml.relauncher.Side;
+
+/**
+ * Optional compact channel for fluid level changes. Meta-only fluid writes are
+ * recorded into a per-section bitmask instead of going through
+ * world.markBlockForUpdate, and flushed once per tick as one packet per chunk.
+ *
+ * @author FHT
+ */
+public class FluidNetwork
+{
+    public static final String                          CHANNEL_NAME    = "RealisticFluids";
+    public static SimpleNetworkWrapper                  CHANNEL;
+
+    /** Chunks that have recorded deltas since the last flush */
+    private static final ConcurrentLinkedQueue<ChunkData> dirty         = new ConcurrentLinkedQueue<ChunkData>();
+
+    public static void init()
+    {
+        CHANNEL = NetworkRegistry.INSTANCE.newSimpleChannel(CHANNEL_NAME);
+        CHANNEL.registerMessage(FluidDeltaPacket.Handler.class, FluidDeltaPacket.class, 0, Side.CLIENT);
+        // Deltas are applied from the client tick
+        if (FMLCommonHandler.instance().getSide().isClient())
+            FMLCommonHandler.instance().bus().register(new FluidDeltaClient());
+    }
+
+    /**
+     * Records a level (meta) change at chunk coords cx, wy, cz. Thread Safe
+     * enough: worst case a bit is set after the flush and goes out next tick.
+     */
+    public static void recordMeta(final ChunkData data, final int cx, final int wy, final int cz)
+    {
+        final int i = wy >> 4;
+        long[] mask = data.deltaMask[i];
+        if (mask == null)
+            mask = data.deltaMask[i] = new long[64];
+        final int idx = cx + (cz << 4) + ((wy & 0xF) << 8);
+        mask[idx >> 6] |= 1L << (idx & 63);
+        if (!data.deltaQueued)
+        {
+            data.deltaQueued = true;
+            dirty.add(data);
+        }
+    }
+
+    /** Sends all recorded deltas. Server thread only. */
+    public static void flush()
+    {
+        ChunkData data;
+        byte[] buffer = null;
+        while ((data = dirty.poll()) != null)
+        {
+            data.deltaQueued = false;
+            if (!data.c.isChunkLoaded)
+            {
+                clear(data);
+                continue;
+            }
+            if (buffer == null)
+                buffer = new byte[16 * (1 + 512 + 1536)];
+            final int[] length = new int[1];
+            final int sectionMask = write(data, buffer, length);
+            if (sectionMask == 0)
+                continue;
+
+            final FluidDeltaPacket p = new FluidDeltaPacket(data.c.xPosition, data.c.zPosition, sectionMask, buffer, length[0]);
+            final WorldServer w = (WorldServer) data.w;
+            for (final Object o : w.playerEntities)
+            {
+                final EntityPlayerMP player = (EntityPlayerMP) o;
+                if (w.getPlayerManager().isPlayerWatchingChunk(player, data.c.xPosition, data.c.zPosition))
+                    CHANNEL.sendTo(p, player);
+            }
+        }
+    }
+
+    private static void clear(final ChunkData data)
+    {
+        for (int i = 0; i < 16; i++)
+            data.deltaMask[i] = null;
+    }
+
+    /**
+     * Serializes and clears the recorded masks of a chunk. Returns the mask of
+     * sections written; the payload length goes into length[0].
+     */
+    private static int write(final ChunkData data, final byte[] out, final int[] length)
+    {
+        final ExtendedBlockStorage[] storage = data.c.getBlockStorageArray();
+        int sectionMask = 0;
+        int pos = 0;
+        for (int i = 0; i < 16; i++)
+        {
+            final long[] mask = data.deltaMask[i];
+            data.deltaMask[i] = null;
+            if (mask == null || storage[i] == null)
+                continue;
+            final ExtendedBlockStorage ebs = storage[i];
+
+            // Falling fluid (meta 8 and up) does not fit in 3 bits, let vanilla send it
+            for (int k = 0; k < 64; k++)
+                for (long bits = mask[k]; bits != 0; bits &= bits - 1)
+                {
+                    final int idx = (k << 6) | Long.numberOfTrailingZeros(bits);
+                    if (ebs.getExtBlockMetadata(idx & 0xF, (idx >> 8) & 0xF, (idx >> 4) & 0xF) > 7)
+                    {
+                        mask[k] &= ~(1L << (idx & 63));
+                        data.w.markBlockForUpdate((data.c.xPosition << 4) + (idx & 0xF), (i << 4) + (idx >> 8),
+                                (data.c.zPosition << 4) + ((idx >> 4) & 0xF));
+                    }
+                }
+
+            int count = 0;
+            for (int k = 0; k < 64; k++)
+                count += Long.bitCount(mask[k]);
+            if (count == 0)
+                continue;
+            sectionMask |= 1 << i;
+
+            if (count <= FluidDeltaPacket.DENSE_OVER)
+            {
+                out[pos++] = FluidDeltaPacket.SPARSE;
+                out[pos++] = (byte) (count >> 8);
+                out[pos++] = (byte) count;
+                for (int idx = 0; idx < 4096; idx++)
+                {
+                    if ((mask[idx >> 6] & (1L << (idx & 63))) == 0)
+                        continue;
+                    final int v = (idx << 3) | eighthsOf(ebs, idx);
+                    out[pos++] = (byte) (v >> 8);
+                    out[pos++] = (byte) v;
+                }
+            } else
+            {
+                out[pos++] = FluidDeltaPacket.DENSE;
+                for (int k = 0; k < 64; k++)
+                    for (int b = 56; b >= 0; b -= 8)
+                        out[pos++] = (byte) (mask[k] >> b);
+                final int bytes = (count * 3 + 7) >> 3;
+                for (int k = 0; k < bytes; k++)
+                    out[pos + k] = 0;
+                int bit = pos << 3;
+                for (int idx = 0; idx < 4096; idx++)
+                {
+                    if ((mask[idx >> 6] & (1L << (idx & 63))) == 0)
+                        continue;
+                    final int v = eighthsOf(ebs, idx);
+                    for (int b = 0; b < 3; b++, bit++)
+                        out[bit >> 3] |= ((v >> b) & 1) << (bit & 7);
+                }
+                pos += bytes;
+            }
+        }
+        length[0] = pos;
+        return sectionMask;
+    }
+
+    /**
+     * Current eighths-1 of a cell, read from the block meta we actually wrote.
+     * Falling cells were taken out of the mask by write.
+     */
+    private static int eighthsOf(final ExtendedBlockStorage ebs, final int idx)
+    {
+        return 7 - ebs.getExtBlockMetadata(idx & 0xF, (idx >> 8) & 0xF, (idx >> 4) & 0xF);
+    }
+
+}